@@ -0,0 +1,98 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/*
+ * The BulkLoader runs every command in a text file, such as one written by
+ * "save [file]". Loading one line at a time through processCommand parses
+ * and evaluates every cell as soon as it is assigned; a big file therefore
+ * pays for each formula over and over as the cells it reads fill in.
+ *
+ * The BulkLoader instead reads the file in large buffered chunks of lines.
+ * The lines of a chunk are parsed in parallel into Commands, and every
+ * assignment builds its cell (see Command.Assign.prepare) on the same
+ * worker thread. The commands are then applied to the grid one after the
+ * other in file order, with the grid in bulk load mode so that nothing is
+ * evaluated. A single recalculation at the end brings every value up to date.
+ */
+public class BulkLoader {
+
+  // the number of lines read and parsed together
+  private static final int CHUNK_LINES = 8192;
+
+  // the size of the read buffer, in chars
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /*
+   * Loads a file of commands into the grid.
+   *
+   * Parameters:
+   *    grid     : The grid to load into.
+   *    filename : The file of commands.
+   * Returns:
+   *    A report of the lines loaded, the lines per second and the lines that failed.
+   * Throws:
+   *    IOException if the file cannot be read.
+   */
+  public static String load(Grid grid, String filename) throws IOException {
+    long started = System.nanoTime();
+    int lines = 0;
+    int failed = 0;
+    String[] chunk = new String[CHUNK_LINES];
+    Command[] commands = new Command[CHUNK_LINES];
+
+    grid.beginBulkLoad();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(filename), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+      int count;
+      while ((count = readChunk(reader, chunk)) > 0) {
+        parse(chunk, commands, count);
+        for (int index = 0; index < count; index++) {
+          Command command = commands[index];
+          command.execute(grid);
+          if (command.failed()) {
+            failed++;
+          }
+          commands[index] = null;
+        }
+        lines += count;
+      }
+    } finally {
+      grid.endBulkLoad();
+    }
+
+    long elapsed = Math.max(System.nanoTime() - started, 1);
+    long linesPerSecond = (long) (lines * 1e9 / elapsed);
+    return "File loaded successfully: " + lines + " lines in " + (elapsed / 1000000) + " ms ("
+        + linesPerSecond + " lines/sec), " + failed + " failed";
+  }
+
+  // reads up to chunk.length non-blank lines, returning how many were read
+  private static int readChunk(BufferedReader reader, String[] chunk) throws IOException {
+    int count = 0;
+    String line;
+    while (count < chunk.length && (line = reader.readLine()) != null) {
+      if (line.trim().length() > 0) {
+        chunk[count++] = line;
+      }
+    }
+    return count;
+  }
+
+  // parses the first count lines into commands, building the cell of every
+  // assignment as it goes. Small chunks are parsed on the calling thread.
+  private static void parse(String[] chunk, Command[] commands, int count) {
+    IntStream indexes = IntStream.range(0, count);
+    if (count >= 256) {
+      indexes = indexes.parallel();
+    }
+    indexes.forEach(index -> {
+      Command command = CommandParser.parse(chunk[index]);
+      if (command instanceof Command.Assign) {
+        ((Command.Assign) command).prepare();
+      }
+      commands[index] = command;
+    });
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * The CellAddress converts between cell names and coordinates for every part
+ * of the program that needs it: the Grid, the command parser, the lexer and
+ * the formulas. A name is one to three column letters (A to XFD, in either
+ * case) followed by a row number (1 to 1048576), like a1, Q7 or xfd1048576.
+ *
+ * parse() reads a name straight from the characters of a CharSequence and
+ * packs the 0-based row and column into a long, the same way as
+ * DependencyGraph.key(), so it never allocates. Column names are formatted
+ * from a lookup table that is filled in the first time each column is asked
+ * for.
+ */
+public class CellAddress {
+
+  // the largest sheet that can be addressed: XFD1048576
+  public static final int MAX_ROWS = 1048576;
+  public static final int MAX_COLS = 16384;
+
+  // returned by parse() for text that is not a cell name
+  public static final long INVALID = -1;
+
+  // column -> its name, filled in on first use
+  private static final String[] columnNames = new String[MAX_COLS];
+
+  // parses a whole CharSequence as a cell name
+  public static long parse(CharSequence text) {
+    return parse(text, 0, text.length());
+  }
+
+  /*
+   * Parses the cell name from start (inclusive) to end (exclusive).
+   *
+   * Returns:
+   *    The row and column packed like DependencyGraph.key(), or INVALID if
+   *    the text is not a cell name or is outside A1 to XFD1048576.
+   */
+  public static long parse(CharSequence text, int start, int end) {
+    int index = start;
+    int col = 0;
+    while (index < end && index - start < 3) {
+      int letter = (text.charAt(index) | 0x20) - 'a';
+      if (letter < 0 || letter > 25) {
+        break;
+      }
+      col = col * 26 + letter + 1;
+      index++;
+    }
+    if (index == start || index == end || col > MAX_COLS || text.charAt(index) == '0') {
+      return INVALID;
+    }
+    int row = 0;
+    for (; index < end; index++) {
+      int digit = text.charAt(index) - '0';
+      if (digit < 0 || digit > 9) {
+        return INVALID;
+      }
+      row = row * 10 + digit;
+      if (row > MAX_ROWS) {
+        return INVALID;
+      }
+    }
+    return DependencyGraph.key(row - 1, col - 1);
+  }
+
+  // parses a column name on its own, like c or XFD, and returns the 0-based
+  // column, or -1 if the text is not a column inside the sheet
+  public static int parseColumn(CharSequence text) {
+    int col = 0;
+    for (int index = 0; index < text.length(); index++) {
+      int letter = (text.charAt(index) | 0x20) - 'a';
+      if (index == 3 || letter < 0 || letter > 25) {
+        return -1;
+      }
+      col = col * 26 + letter + 1;
+    }
+    return col == 0 || col > MAX_COLS ? -1 : col - 1;
+  }
+
+  // returns true if the whole text is a cell name
+  public static boolean isValid(CharSequence text) {
+    return parse(text) != INVALID;
+  }
+
+  /*
+   * Returns the length of the letters-then-digits word that starts at start,
+   * or 0 if there is no such word. It does not check that the word is a cell
+   * inside the sheet; parse() does that.
+   */
+  public static int nameLength(CharSequence text, int start, int end) {
+    int index = start;
+    while (index < end && Character.isLetter(text.charAt(index))) {
+      index++;
+    }
+    if (index == start || index == end || !Character.isDigit(text.charAt(index))) {
+      return 0;
+    }
+    while (index < end && Character.isDigit(text.charAt(index))) {
+      index++;
+    }
+    return index - start;
+  }
+
+  // gets the 0-based row and column back out of a parsed address
+  public static int row(long address) {
+    return DependencyGraph.row(address);
+  }
+
+  public static int col(long address) {
+    return DependencyGraph.col(address);
+  }
+
+  // returns the name of a 0-based column: A, B, ..., Z, AA, ..., XFD
+  public static String columnName(int col) {
+    String name = columnNames[col];
+    if (name == null) {
+      char[] letters = new char[3];
+      int index = letters.length;
+      for (int number = col + 1; number > 0; number = (number - 1) / 26) {
+        letters[--index] = (char) ('A' + (number - 1) % 26);
+      }
+      name = new String(letters, index, letters.length - index);
+      columnNames[col] = name;
+    }
+    return name;
+  }
+
+  // returns the name of the cell at a 0-based row and column, like A1
+  public static String format(int row, int col) {
+    return columnName(col) + (row + 1);
+  }
+
+  // adds the name of the cell at a 0-based row and column to out
+  public static void append(StringBuilder out, int row, int col) {
+    out.append(columnName(col)).append(row + 1);
+  }
+}
@@ -0,0 +1,90 @@
+import java.util.*;
+
+/*
+ * The CellEvaluator brings an out of date formula cell up to date without
+ * recursing through the cells it reads. Letting getValue() evaluate the
+ * formula straight away would call getValue() on every dirty cell it
+ * references, and those on theirs, so a running total a2 = ( a1 + b2 ) down
+ * a hundred thousand rows would need a hundred thousand nested calls and
+ * overflow the thread stack.
+ *
+ * Instead the evaluator walks the dirty cells depth first with an explicit
+ * stack of frames on the heap. A frame holds a cell and the dirty cells it
+ * reads. The frame on top pushes its next dirty precedent; once none are
+ * left, every cell the formula reads is up to date, so the formula is
+ * evaluated (reading only cached values) and the frame is popped.
+ *
+ * The frames on the stack always form a path of cells that read each
+ * other. Finding a precedent that is already on the path therefore means
+ * that every cell from that frame to the top reads itself: those cells are
+ * set to #CYCLE! in the same pass, and the cells below them read the error
+ * like any other value.
+ */
+public class CellEvaluator {
+
+  // a cell on the stack, the generation it was at when it was pushed, the
+  // dirty cells its formula reads, and the position of the next one to
+  // look at
+  private static final class Frame {
+    final NumberCell cell;
+    final long generation;
+    final ArrayList<NumberCell> precedents = new ArrayList<NumberCell>();
+    int next = 0;
+
+    Frame(NumberCell cell) {
+      this.cell = cell;
+      generation = cell.getGeneration();
+      cell.addDirtyPrecedents(precedents);
+    }
+
+    // returns the next precedent that is still dirty, or null if there is none
+    NumberCell nextDirty() {
+      while (next < precedents.size()) {
+        NumberCell precedent = precedents.get(next++);
+        if (precedent.isDirty()) {
+          return precedent;
+        }
+      }
+      return null;
+    }
+  }
+
+  // brings the cell, and every dirty cell it reads directly or through
+  // other formulas, up to date
+  public static void evaluate(NumberCell cell) {
+    Frame root = new Frame(cell);
+    if (root.precedents.isEmpty()) {
+      cell.calculate();
+      return;
+    }
+
+    ArrayList<Frame> stack = new ArrayList<Frame>();
+    IdentityHashMap<NumberCell, Integer> onStack = new IdentityHashMap<NumberCell, Integer>();
+    stack.add(root);
+    onStack.put(cell, 0);
+    while (!stack.isEmpty()) {
+      Frame top = stack.get(stack.size() - 1);
+      NumberCell next = top.cell.isDirty() ? top.nextDirty() : null;
+      if (next == null) {
+        // everything it reads is up to date (or it was part of a cycle)
+        if (top.cell.isDirty()) {
+          top.cell.calculate();
+        }
+        stack.remove(stack.size() - 1);
+        onStack.remove(top.cell);
+        continue;
+      }
+
+      Integer position = onStack.get(next);
+      if (position != null) {
+        for (int index = position; index < stack.size(); index++) {
+          Frame frame = stack.get(index);
+          frame.cell.fail(frame.generation, ErrorValue.CYCLE_ERROR);
+        }
+        continue;
+      }
+      onStack.put(next, stack.size());
+      stack.add(new Frame(next));
+    }
+  }
+}
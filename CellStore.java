@@ -0,0 +1,623 @@
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * The CellStore holds the cells of the Grid. A dense Cell[rows][cols] costs
+ * memory for every location of the bounding rectangle, even though most
+ * locations of a big sheet are empty. The CellStore instead splits the sheet
+ * into fixed-size tiles of TILE_ROWS x TILE_COLS cells and only allocates a
+ * tile the first time a cell inside it is written, so memory grows with the
+ * populated cells rather than with the size of the sheet.
+ *
+ * The tiles are found through a small directory indexed by
+ * [row / TILE_ROWS][col / TILE_COLS]. Growing the sheet only grows the
+ * directory; shrinking it releases the tiles that fall outside. Cells are
+ * never copied. Inside a tile the cells are stored row by row, so a scan
+ * along a row (print, save, sum) reads neighbouring array slots.
+ *
+ * Plain numbers (a cell whose expression is just a number, like a1 = 5) do
+ * not keep a Cell object at all. Their values are stored in a primitive
+ * double[] block inside the tile, in the same row by row order as the
+ * cells, with a bitmap that marks which locations hold a number. get()
+ * rebuilds a NumberCell for such a location when one is asked for, but sums
+ * and sorts read the doubles directly. Formula, text and date cells keep
+ * their objects.
+ *
+ * Each location also keeps the version at which it last changed (see
+ * GridBase.getVersion). Locations in tiles that were never allocated
+ * report the version of the last clear().
+ *
+ * The store may be read by any number of threads while writers change it.
+ * Writers hold the Grid's StripedLock for the tile they write, so a tile
+ * only has one writer at a time. Readers take no lock: every slot is read
+ * and written through VarHandles with acquire and release ordering, and a
+ * writer always puts the new contents of a location in place before it
+ * drops the old ones, so a reader sees either the old or the new contents
+ * of a location, never a half written slot or an empty one in between.
+ * A scan over a range sees every location whole, but may see some
+ * locations before and others after a change that is made while it runs.
+ */
+public class CellStore {
+
+  // the size of a tile: 64 rows by 16 columns
+  static final int ROW_BITS = 6;
+  static final int COL_BITS = 4;
+  static final int TILE_ROWS = 1 << ROW_BITS;
+  static final int TILE_COLS = 1 << COL_BITS;
+
+  // the cells of one tile, the plain numbers and the version at which each
+  // location last changed, all stored row by row. numbers and present are
+  // only allocated once the tile holds a plain number.
+  private static final class Tile {
+    final Cell[] cells = new Cell[TILE_ROWS * TILE_COLS];
+    final long[] versions;
+    volatile double[] numbers = null;
+    volatile long[] present = null;
+    volatile int count = 0;
+
+    Tile(long version) {
+      versions = new long[TILE_ROWS * TILE_COLS];
+      Arrays.fill(versions, version);
+    }
+  }
+
+  // ordered access to the slots of the arrays that readers share with writers
+  private static final VarHandle TILE_ROWS_OF = MethodHandles.arrayElementVarHandle(Tile[][].class);
+  private static final VarHandle TILES_OF = MethodHandles.arrayElementVarHandle(Tile[].class);
+  private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(Cell[].class);
+  private static final VarHandle NUMBERS = MethodHandles.arrayElementVarHandle(double[].class);
+  private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+  // what read() returns for a location that holds a plain number
+  private static final Cell NUMBER = new Cell();
+
+  private volatile Tile[][] tiles;
+  private volatile int rows;
+  private volatile int cols;
+  private final AtomicInteger count = new AtomicInteger();
+
+  // the version of every location that has not changed since the last clear()
+  private volatile long clearVersion = 0;
+
+  // creates an empty store for a sheet of rows x cols cells
+  public CellStore(int rows, int cols) {
+    this.rows = rows;
+    this.cols = cols;
+    tiles = new Tile[tileCount(rows, ROW_BITS)][];
+  }
+
+  // returns the number of tiles needed to cover size cells
+  private static int tileCount(int size, int bits) {
+    return (size + (1 << bits) - 1) >> bits;
+  }
+
+  // returns the index of row, col inside its tile
+  private static int slot(int row, int col) {
+    return ((row & (TILE_ROWS - 1)) << COL_BITS) | (col & (TILE_COLS - 1));
+  }
+
+  // returns the tile that holds row, col, or null if it was never written
+  private Tile tile(int row, int col) {
+    return tileAt(tileRow(tiles, row >> ROW_BITS), col >> COL_BITS);
+  }
+
+  // returns a row of the tile directory, or null if it has none yet. A
+  // reader may hold a directory that resize() has since replaced, so an
+  // index past its end is simply empty.
+  private static Tile[] tileRow(Tile[][] directory, int index) {
+    return index < directory.length ? (Tile[]) TILE_ROWS_OF.getAcquire(directory, index) : null;
+  }
+
+  // returns a tile of a row of the directory, or null
+  private static Tile tileAt(Tile[] tileRow, int index) {
+    return tileRow != null && index < tileRow.length ? (Tile) TILES_OF.getAcquire(tileRow, index) : null;
+  }
+
+  // returns the number of rows and columns of the sheet
+  public int getRows() {
+    return rows;
+  }
+
+  public int getCols() {
+    return cols;
+  }
+
+  // returns the number of cells that are not empty
+  public int size() {
+    return count.get();
+  }
+
+  // returns true if row, col is inside the sheet
+  public boolean contains(int row, int col) {
+    return row >= 0 && col >= 0 && row < rows && col < cols;
+  }
+
+  // returns true if the slot of the tile holds a plain number
+  private static boolean hasNumber(Tile tile, int slot) {
+    long[] present = tile.present;
+    return present != null && ((long) BITS.getAcquire(present, slot >> 6) & (1L << slot)) != 0;
+  }
+
+  // returns the plain number in the slot of the tile
+  private static double number(Tile tile, int slot) {
+    return (double) NUMBERS.getAcquire(tile.numbers, slot);
+  }
+
+  // returns the cell object in the slot of the tile, or null
+  private static Cell cell(Tile tile, int slot) {
+    return (Cell) CELLS.getAcquire(tile.cells, slot);
+  }
+
+  /*
+   * Reads one slot of a tile.
+   *
+   * Returns:
+   *    The cell object in the slot, NUMBER if it holds a plain number (which
+   *    number() then gives), or null if it is empty.
+   */
+  private static Cell read(Tile tile, int slot) {
+    // a writer puts a cell in place before it clears the bit of the number
+    // it replaces, and sets the bit of a number before it removes the cell
+    // the number replaces, so if the slot looks empty but the cell shows up
+    // when it is read again, the slot was changing from a number to a cell
+    while (true) {
+      Cell cell = cell(tile, slot);
+      if (cell != null) {
+        return cell;
+      }
+      if (hasNumber(tile, slot)) {
+        return NUMBER;
+      }
+      if (cell(tile, slot) == null) {
+        return null;
+      }
+    }
+  }
+
+  /*
+   * Returns the cell at row, col, or null if it is empty or outside the
+   * sheet. For a plain number a new NumberCell is built from the stored value.
+   */
+  public Cell get(int row, int col) {
+    if (!contains(row, col)) {
+      return null;
+    }
+    Tile tile = tile(row, col);
+    if (tile == null) {
+      return null;
+    }
+    int slot = slot(row, col);
+    Cell cell = read(tile, slot);
+    return cell == NUMBER ? numberCell(number(tile, slot)) : cell;
+  }
+
+  // returns true if the location holds a plain number
+  public boolean isNumber(int row, int col) {
+    Tile tile = contains(row, col) ? tile(row, col) : null;
+    return tile != null && hasNumber(tile, slot(row, col));
+  }
+
+  // returns the value at row, col without building a cell; empty
+  // locations and locations outside the sheet are 0.0
+  public double getValue(int row, int col) {
+    Tile tile = contains(row, col) ? tile(row, col) : null;
+    if (tile == null) {
+      return 0.0;
+    }
+    int slot = slot(row, col);
+    Cell cell = read(tile, slot);
+    if (cell == NUMBER) {
+      return number(tile, slot);
+    }
+    return cell == null ? 0.0 : cell.getValue();
+  }
+
+  /*
+   * Stores a cell (or empties the location when cell is null) and records
+   * the version of the change. The location must be inside the sheet. A
+   * plain number is kept as a double instead of as the cell object. The
+   * caller holds the lock of the location's region (see StripedLock).
+   */
+  public void set(int row, int col, Cell cell, long version) {
+    if (isPlainNumber(cell)) {
+      setNumber(row, col, cell.getValue(), version);
+      return;
+    }
+    Tile tile = tile(row, col);
+    if (tile == null) {
+      // even emptying a location needs the tile, to record its version
+      tile = allocate(row, col);
+    }
+    int slot = slot(row, col);
+    boolean wasEmpty = read(tile, slot) == null;
+    VERSIONS.setRelease(tile.versions, slot, version);
+    // the cell goes in before the number it replaces is dropped
+    CELLS.setRelease(tile.cells, slot, cell);
+    if (hasNumber(tile, slot)) {
+      BITS.getAndBitwiseAndRelease(tile.present, slot >> 6, ~(1L << slot));
+    }
+    counted(tile, wasEmpty, cell == null);
+  }
+
+  // stores a plain number at row, col and records the version of the change
+  public void setNumber(int row, int col, double value, long version) {
+    Tile tile = tile(row, col);
+    if (tile == null) {
+      tile = allocate(row, col);
+    }
+    int slot = slot(row, col);
+    boolean wasEmpty = read(tile, slot) == null;
+    if (tile.numbers == null) {
+      // the numbers are allocated first, so a reader that finds the bitmap
+      // also finds them
+      tile.numbers = new double[TILE_ROWS * TILE_COLS];
+      tile.present = new long[TILE_ROWS * TILE_COLS / 64];
+    }
+    VERSIONS.setRelease(tile.versions, slot, version);
+    // the number goes in before the cell it replaces is dropped
+    NUMBERS.setRelease(tile.numbers, slot, value);
+    BITS.getAndBitwiseOrRelease(tile.present, slot >> 6, 1L << slot);
+    CELLS.setRelease(tile.cells, slot, null);
+    counted(tile, wasEmpty, false);
+  }
+
+  // empties one slot of a tile
+  private void remove(Tile tile, int slot) {
+    boolean wasEmpty = read(tile, slot) == null;
+    CELLS.setRelease(tile.cells, slot, null);
+    if (hasNumber(tile, slot)) {
+      BITS.getAndBitwiseAndRelease(tile.present, slot >> 6, ~(1L << slot));
+    }
+    counted(tile, wasEmpty, true);
+  }
+
+  // updates the counts of non-empty cells after a slot of the tile changed
+  private void counted(Tile tile, boolean wasEmpty, boolean isEmpty) {
+    if (wasEmpty != isEmpty) {
+      int change = isEmpty ? -1 : 1;
+      tile.count += change;
+      count.addAndGet(change);
+    }
+  }
+
+  /*
+   * Returns true if the cell is a plain number: a NumberCell holding a
+   * constant whose expression is exactly the text numberText() gives for
+   * its value, so the expression can be rebuilt from the value alone.
+   */
+  static boolean isPlainNumber(Cell cell) {
+    if (!(cell instanceof NumberCell) || !(((NumberCell) cell).getFormula() instanceof Formula.Constant)) {
+      return false;
+    }
+    String expression = cell.getExpression();
+    String text = numberText(cell.getValue());
+    return expression.length() == text.length() + 1 && expression.charAt(0) == ' '
+        && expression.endsWith(text);
+  }
+
+  // returns how a plain number is written: whole numbers without a decimal
+  // point (5, -2), anything else the way Double.toString writes it (9.5)
+  static String numberText(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15
+        && (value != 0.0 || 1 / value > 0)) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  // builds the NumberCell for a plain number, with the same expression
+  // (including the leading space) as a1 = [value] gives
+  static NumberCell numberCell(double value) {
+    NumberCell cell = new NumberCell();
+    cell.setFormula(" " + numberText(value), new Formula.Constant(value));
+    return cell;
+  }
+
+  // allocates the tile that holds row, col. Writers of other regions may
+  // allocate tiles in the same row of the directory at the same time.
+  private synchronized Tile allocate(int row, int col) {
+    Tile[][] directory = tiles;
+    Tile[] tileRow = tileRow(directory, row >> ROW_BITS);
+    if (tileRow == null) {
+      tileRow = new Tile[tileCount(cols, COL_BITS)];
+      TILE_ROWS_OF.setRelease(directory, row >> ROW_BITS, tileRow);
+    }
+    Tile tile = tileAt(tileRow, col >> COL_BITS);
+    if (tile == null) {
+      tile = new Tile(clearVersion);
+      TILES_OF.setRelease(tileRow, col >> COL_BITS, tile);
+    }
+    return tile;
+  }
+
+  // returns the version at which the location last changed
+  public long getVersion(int row, int col) {
+    Tile tile = contains(row, col) ? tile(row, col) : null;
+    if (tile == null) {
+      return clearVersion;
+    }
+    return (long) VERSIONS.getAcquire(tile.versions, slot(row, col));
+  }
+
+  // records that the location changed at version without changing its cell
+  public void touch(int row, int col, long version) {
+    Tile tile = tile(row, col);
+    if (tile != null) {
+      VERSIONS.setRelease(tile.versions, slot(row, col), version);
+    } else {
+      set(row, col, null, version);
+    }
+  }
+
+  // empties every location, releasing all the tiles
+  public void clear(long version) {
+    clearVersion = version;
+    tiles = new Tile[tileCount(rows, ROW_BITS)][];
+    count.set(0);
+  }
+
+  /*
+   * Changes the size of the sheet. Growing only makes the tile directory
+   * bigger; shrinking releases the tiles outside the new size and empties
+   * the cells outside it in the tiles that are cut in two.
+   *
+   * Returns:
+   *    The keys (see DependencyGraph.key) of the cells that were removed.
+   */
+  public List<Long> resize(int newRows, int newCols) {
+    ArrayList<Long> removed = new ArrayList<Long>();
+    if (newRows < rows || newCols < cols) {
+      forEach(0, 0, rows - 1, cols - 1, (row, col, cell) -> {
+        if (row >= newRows || col >= newCols) {
+          removed.add(DependencyGraph.key(row, col));
+        }
+      });
+      for (long key : removed) {
+        Tile tile = tile(DependencyGraph.row(key), DependencyGraph.col(key));
+        remove(tile, slot(DependencyGraph.row(key), DependencyGraph.col(key)));
+      }
+    }
+
+    // the new directory is built before it is published, so readers use
+    // either the old one or the new one
+    int tileRows = tileCount(newRows, ROW_BITS);
+    int tileCols = tileCount(newCols, COL_BITS);
+    Tile[][] directory = Arrays.copyOf(tiles, tileRows);
+    for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+      if (directory[tileRow] != null && directory[tileRow].length != tileCols) {
+        directory[tileRow] = Arrays.copyOf(directory[tileRow], tileCols);
+      }
+    }
+    tiles = directory;
+    rows = newRows;
+    cols = newCols;
+    return removed;
+  }
+
+  // called for every cell visited by forEach()
+  public interface CellVisitor {
+    void visit(int row, int col, Cell cell);
+  }
+
+  // called for every value visited by forEachValue()
+  public interface ValueVisitor {
+    void visit(int row, int col, double value);
+  }
+
+  /*
+   * Visits every non-empty cell in the region from startRow, startCol to
+   * endRow, endCol (inclusive), row by row. Tiles that were never written
+   * are skipped without looking at their cells.
+   */
+  public void forEach(int startRow, int startCol, int endRow, int endCol, CellVisitor visitor) {
+    forEach(startRow, startCol, endRow, endCol, visitor,
+        (row, col, value) -> visitor.visit(row, col, numberCell(value)));
+  }
+
+  /*
+   * Visits every non-empty location in the region row by row, like
+   * forEach(), but hands the plain numbers to numberVisitor straight from
+   * the tile's double[] block instead of building cells for them. The
+   * other cells go to cellVisitor.
+   */
+  public void forEach(int startRow, int startCol, int endRow, int endCol,
+      CellVisitor cellVisitor, ValueVisitor numberVisitor) {
+    startRow = Math.max(startRow, 0);
+    startCol = Math.max(startCol, 0);
+    endRow = Math.min(endRow, rows - 1);
+    endCol = Math.min(endCol, cols - 1);
+    Tile[][] directory = tiles;
+    for (int row = startRow; row <= endRow; row++) {
+      Tile[] tileRow = tileRow(directory, row >> ROW_BITS);
+      if (tileRow == null) {
+        // skip to the first row of the next band of tiles
+        row |= TILE_ROWS - 1;
+        continue;
+      }
+      for (int col = startCol; col <= endCol; col++) {
+        Tile tile = tileAt(tileRow, col >> COL_BITS);
+        if (tile == null || tile.count == 0) {
+          col |= TILE_COLS - 1;
+          continue;
+        }
+        int slot = slot(row, col);
+        Cell cell = read(tile, slot);
+        if (cell == NUMBER) {
+          numberVisitor.visit(row, col, number(tile, slot));
+        } else if (cell != null) {
+          cellVisitor.visit(row, col, cell);
+        }
+      }
+    }
+  }
+
+  /*
+   * Visits the value of every non-empty location in the region, row by row,
+   * like forEach() but without building cells for the plain numbers.
+   */
+  public void forEachValue(int startRow, int startCol, int endRow, int endCol, ValueVisitor visitor) {
+    startRow = Math.max(startRow, 0);
+    startCol = Math.max(startCol, 0);
+    endRow = Math.min(endRow, rows - 1);
+    endCol = Math.min(endCol, cols - 1);
+    Tile[][] directory = tiles;
+    for (int row = startRow; row <= endRow; row++) {
+      Tile[] tileRow = tileRow(directory, row >> ROW_BITS);
+      if (tileRow == null) {
+        row |= TILE_ROWS - 1;
+        continue;
+      }
+      for (int col = startCol; col <= endCol; col++) {
+        Tile tile = tileAt(tileRow, col >> COL_BITS);
+        if (tile == null || tile.count == 0) {
+          col |= TILE_COLS - 1;
+          continue;
+        }
+        int slot = slot(row, col);
+        Cell cell = read(tile, slot);
+        if (cell == NUMBER) {
+          visitor.visit(row, col, number(tile, slot));
+        } else if (cell != null) {
+          visitor.visit(row, col, cell.getValue());
+        }
+      }
+    }
+  }
+
+  /*
+   * Adds every formula cell in the region whose value is out of date to
+   * dirty. Plain numbers are never out of date, so only the cell objects
+   * are looked at.
+   */
+  public void addDirtyCells(int startRow, int startCol, int endRow, int endCol, List<NumberCell> dirty) {
+    startRow = Math.max(startRow, 0);
+    startCol = Math.max(startCol, 0);
+    endRow = Math.min(endRow, rows - 1);
+    endCol = Math.min(endCol, cols - 1);
+    Tile[][] directory = tiles;
+    for (int row = startRow; row <= endRow; row++) {
+      Tile[] tileRow = tileRow(directory, row >> ROW_BITS);
+      if (tileRow == null) {
+        row |= TILE_ROWS - 1;
+        continue;
+      }
+      for (int col = startCol; col <= endCol; col++) {
+        Tile tile = tileAt(tileRow, col >> COL_BITS);
+        if (tile == null || tile.count == 0) {
+          col |= TILE_COLS - 1;
+          continue;
+        }
+        Cell cell = cell(tile, slot(row, col));
+        if (cell instanceof NumberCell && ((NumberCell) cell).isDirty()) {
+          dirty.add((NumberCell) cell);
+        }
+      }
+    }
+  }
+
+  /*
+   * Gathers the values of the number cells in the region (plain numbers,
+   * formulas and valid dates, but not text, invalid dates or empty
+   * locations) into values, row by row, so that a kernel can run over one
+   * contiguous buffer.
+   *
+   * Parameters:
+   *    values : The buffer; it must have room for every location of the region.
+   * Returns:
+   *    The number of values gathered.
+   */
+  public int gatherNumbers(int startRow, int startCol, int endRow, int endCol, double[] values) {
+    int count = 0;
+    startRow = Math.max(startRow, 0);
+    startCol = Math.max(startCol, 0);
+    endRow = Math.min(endRow, rows - 1);
+    endCol = Math.min(endCol, cols - 1);
+    Tile[][] directory = tiles;
+    for (int row = startRow; row <= endRow; row++) {
+      Tile[] tileRow = tileRow(directory, row >> ROW_BITS);
+      if (tileRow == null) {
+        row |= TILE_ROWS - 1;
+        continue;
+      }
+      for (int col = startCol; col <= endCol; col++) {
+        Tile tile = tileAt(tileRow, col >> COL_BITS);
+        if (tile == null || tile.count == 0) {
+          col |= TILE_COLS - 1;
+          continue;
+        }
+        int slot = slot(row, col);
+        Cell cell = read(tile, slot);
+        if (cell == NUMBER) {
+          values[count++] = number(tile, slot);
+        } else if (cell instanceof NumberCell || isDate(cell)) {
+          values[count++] = cell.getValue();
+        }
+      }
+    }
+    return count;
+  }
+
+  // returns true if the cell is a valid date, whose value is its day number
+  private static boolean isDate(Cell cell) {
+    return cell instanceof DateCell && ((DateCell) cell).isValid();
+  }
+
+  /*
+   * Copies the plain numbers of the region into values, row by row.
+   *
+   * Returns:
+   *    true if every location of the region holds a plain number, false
+   *    (leaving values partly filled) as soon as one does not.
+   */
+  public boolean readNumbers(int startRow, int startCol, int endRow, int endCol, double[] values) {
+    int index = 0;
+    for (int row = startRow; row <= endRow; row++) {
+      for (int col = startCol; col <= endCol; col++) {
+        Tile tile = contains(row, col) ? tile(row, col) : null;
+        if (tile == null || read(tile, slot(row, col)) != NUMBER) {
+          return false;
+        }
+        values[index++] = number(tile, slot(row, col));
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Returns the sum of the values of the cells in the region, skipping the
+   * tiles that were never written. The values are added row by row; plain
+   * numbers are read from the tile's double[] block.
+   */
+  public double sum(int startRow, int startCol, int endRow, int endCol) {
+    double sum = 0;
+    startRow = Math.max(startRow, 0);
+    startCol = Math.max(startCol, 0);
+    endRow = Math.min(endRow, rows - 1);
+    endCol = Math.min(endCol, cols - 1);
+    Tile[][] directory = tiles;
+    for (int row = startRow; row <= endRow; row++) {
+      Tile[] tileRow = tileRow(directory, row >> ROW_BITS);
+      if (tileRow == null) {
+        row |= TILE_ROWS - 1;
+        continue;
+      }
+      for (int col = startCol; col <= endCol; col++) {
+        Tile tile = tileAt(tileRow, col >> COL_BITS);
+        if (tile == null || tile.count == 0) {
+          col |= TILE_COLS - 1;
+          continue;
+        }
+        int slot = slot(row, col);
+        Cell cell = read(tile, slot);
+        if (cell == NUMBER) {
+          sum += number(tile, slot);
+        } else if (cell != null) {
+          sum += cell.getValue();
+        }
+      }
+    }
+    return sum;
+  }
+}
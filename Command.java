@@ -0,0 +1,398 @@
+/*
+ * A Command is one parsed line of input for the Grid. The CommandParser reads
+ * the text of a command once and builds one of the typed commands below; the
+ * Grid then runs it by calling execute(). Each command only keeps the pieces
+ * of the text it needs (cell names, the expression, the file name, ...), so
+ * nothing has to be split or searched again when it runs.
+ */
+public abstract class Command {
+
+  // the full text of the command, used in error messages
+  protected final String text;
+
+  protected Command(String text) {
+    this.text = text;
+  }
+
+  // returns the full text of the command
+  public String getText() {
+    return text;
+  }
+
+  /*
+   * Runs this command against the grid.
+   *
+   * Returns:
+   *    The result of the command as a string to be printed by the infrastructure.
+   */
+  public abstract String execute(Grid grid);
+
+  // returns true if the command could not be run, for example because it
+  // was not recognized or assigned an invalid expression
+  public boolean failed() {
+    return false;
+  }
+
+  // print, or print [range] : render a text based version of the matrix,
+  // or of just the window of it given by the range
+  static class Print extends Command {
+    private final String start;
+    private final String end;
+
+    Print(String text, String start, String end) {
+      super(text);
+      this.start = start;
+      this.end = end;
+    }
+
+    public String execute(Grid grid) {
+      if (start == null) {
+        return grid.print();
+      }
+      return grid.print(start, end);
+    }
+  }
+
+  // rows, cols or width, optionally followed by = [value]
+  static class Property extends Command {
+    private final String name;
+    private final String value;
+
+    Property(String text, String name, String value) {
+      super(text);
+      this.name = name;
+      this.value = value;
+    }
+
+    public String execute(Grid grid) {
+      return grid.property(name, value);
+    }
+  }
+
+  // calc [setting], optionally followed by = [value]
+  static class Calc extends Command {
+    private final String setting;
+    private final String value;
+
+    Calc(String text, String setting, String value) {
+      super(text);
+      this.setting = setting;
+      this.value = value;
+    }
+
+    public String execute(Grid grid) {
+      return grid.calc(setting, value, text);
+    }
+  }
+
+  // [cell] = [expression]
+  static class Assign extends Command {
+    private final String cell;
+    private final String expression;
+
+    // the cell built from the expression by prepare(), or the reason the
+    // assignment failed
+    private Cell prepared = null;
+    private String error = null;
+
+    Assign(String text, String cell, String expression) {
+      super(text);
+      this.cell = cell;
+      this.expression = expression;
+    }
+
+    // returns the name of the cell being assigned
+    public String getCell() {
+      return cell;
+    }
+
+    // returns everything after the equal sign, including the leading space
+    public String getExpression() {
+      return expression;
+    }
+
+    // returns the reason the assignment failed, or null
+    public String getError() {
+      return error;
+    }
+
+    // records that the assignment failed and returns the message
+    String fail(String message) {
+      error = message;
+      return message;
+    }
+
+    public boolean failed() {
+      return error != null;
+    }
+
+    /*
+     * Builds the cell for the expression. The expression may be
+     *   - a sum or average of a range, like a1 = ( sum a2 - a6 )
+     *   - a string, like a1 = "hello"
+     *   - a date, like a1 = 2/2/22
+     *   - a number or formula, like a1 = ( 3 * 4 )
+     * Building the cell does all the parsing but does not touch the grid, so
+     * a bulk load can prepare many assignments in parallel before running them.
+     *
+     * Returns:
+     *    The new cell, or null if the expression is invalid (see getError()).
+     */
+    public Cell prepare() {
+      if (prepared != null || error != null) {
+        return prepared;
+      }
+
+      // formulas are compiled relative to the cell they are assigned to
+      long anchor = CellAddress.parse(cell);
+      int row = anchor == CellAddress.INVALID ? 0 : CellAddress.row(anchor);
+      int col = anchor == CellAddress.INVALID ? 0 : CellAddress.col(anchor);
+
+      // if there is a sum or an average of a range of cells that is assigned
+      // through parentheses to a single cell
+      if (text.contains("( sum ") || text.contains("( avg ")) {
+        NumberCell number = new NumberCell();
+        if (!number.setFunction(expression.substring(1), row, col)) {
+          fail(cell + " is undefined");
+        } else {
+          prepared = number;
+        }
+        return prepared;
+      }
+
+      // used if the user enters a string expression and assigns
+      // that to a cell (like a1 = "hello")
+      if (expression.length() > 1 && expression.charAt(1) == '"' && text.endsWith("\"")) {
+        prepared = new TextCell();
+        prepared.setExpression(expression.substring(1));
+        return prepared;
+      }
+
+      // if the user assigns a date or an expression to a cell
+      // (like a1 = 2/2/22 or a1 = ( 3 * 4) )
+      Cell built;
+      if (!expression.contains("(") && expression.contains("/")) {
+        built = new DateCell();
+      } else {
+        built = new NumberCell();
+      }
+
+      // makes sure that every open parentheses has a closing one
+      // to guarentee that all parentheses are in sets
+      String[] tokens = expression.split(" ");
+      int open = 0;
+      for (int index = 0; index < tokens.length; index++) {
+        if (tokens[index].equals("(")) {
+          open++;
+        } else if (tokens[index].equals(")")) {
+          open--;
+        }
+      }
+
+      // if the inputted number has too many decimal points, not enough sets
+      // set of parentheses, or undefined value then an error will show
+      if (decimalRepeat(tokens)) {
+        fail("invalid decimal");
+      } else if (open != 0) {
+        fail("invalid input");
+      } else if (built instanceof NumberCell
+          ? !((NumberCell) built).setExpression(expression, row, col)
+          : !built.setExpression(expression)) {
+        fail(cell + " is undefined");
+      } else {
+        prepared = built;
+      }
+      return prepared;
+    }
+
+    // returns true if one of the tokens has more than one decimal point
+    private static boolean decimalRepeat(String[] tokens) {
+      for (int i = 0; i < tokens.length; i++) {
+        int periods = 0;
+        for (int c = 0; c < tokens[i].length(); c++) {
+          if (tokens[i].charAt(c) == '.') {
+            periods++;
+          }
+        }
+        if (periods > 1) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public String execute(Grid grid) {
+      return grid.assign(this);
+    }
+  }
+
+  // value [cell] : get the cell value
+  static class Value extends Command {
+    private final String cell;
+
+    Value(String text, String cell) {
+      super(text);
+      this.cell = cell;
+    }
+
+    public String execute(Grid grid) {
+      return grid.value(cell);
+    }
+  }
+
+  // display [cell] : get the string for how the cell wants to display itself
+  static class Display extends Command {
+    private final String cell;
+
+    Display(String text, String cell) {
+      super(text);
+      this.cell = cell;
+    }
+
+    public String execute(Grid grid) {
+      return grid.display(cell);
+    }
+  }
+
+  // expr [cell], or just [cell] : get the cell's expression
+  static class Expression extends Command {
+    private final String cell;
+    private final boolean bare;
+
+    Expression(String text, String cell, boolean bare) {
+      super(text);
+      this.cell = cell;
+      this.bare = bare;
+    }
+
+    public String execute(Grid grid) {
+      if (bare) {
+        return grid.showExpression(cell);
+      }
+      return grid.expr(cell);
+    }
+  }
+
+  // clear, or clear [cell]
+  static class Clear extends Command {
+    private final String cell;
+
+    Clear(String text, String cell) {
+      super(text);
+      this.cell = cell;
+    }
+
+    public String execute(Grid grid) {
+      if (cell == null) {
+        return grid.clear();
+      }
+      return grid.clear(cell);
+    }
+  }
+
+  // sum, avg, min, max, count or median [range]; the function is one of the
+  // ExpressionLexer function codes
+  static class Aggregate extends Command {
+    private final int function;
+    private final String start;
+    private final String end;
+
+    Aggregate(String text, int function, String start, String end) {
+      super(text);
+      this.function = function;
+      this.start = start;
+      this.end = end;
+    }
+
+    public String execute(Grid grid) {
+      return grid.aggregate(function, start, end);
+    }
+  }
+
+  // topk [k] [range], bottomk [k] [range] or nth [k] [range]
+  static class Rank extends Command {
+    private final int function;
+    private final int k;
+    private final String start;
+    private final String end;
+
+    Rank(String text, int function, int k, String start, String end) {
+      super(text);
+      this.function = function;
+      this.k = k;
+      this.start = start;
+      this.end = end;
+    }
+
+    public String execute(Grid grid) {
+      return grid.rank(function, k, start, end);
+    }
+  }
+
+  // sorta [range] or sortd [range]
+  static class Sort extends Command {
+    private final boolean descending;
+    private final String start;
+    private final String end;
+
+    Sort(String text, boolean descending, String start, String end) {
+      super(text);
+      this.descending = descending;
+      this.start = start;
+      this.end = end;
+    }
+
+    public String execute(Grid grid) {
+      return grid.sort(descending, start, end);
+    }
+  }
+
+  // sortrows [start] - [end] by [column] [asc or desc], ...
+  static class SortRows extends Command {
+    private final String start;
+    private final String end;
+    private final int[] columns;
+    private final boolean[] descending;
+
+    SortRows(String text, String start, String end, int[] columns, boolean[] descending) {
+      super(text);
+      this.start = start;
+      this.end = end;
+      this.columns = columns;
+      this.descending = descending;
+    }
+
+    public String execute(Grid grid) {
+      return grid.sortRows(start, end, columns, descending);
+    }
+  }
+
+  // save [file]
+  static class Save extends Command {
+    private final String filename;
+
+    Save(String text, String filename) {
+      super(text);
+      this.filename = filename;
+    }
+
+    public String execute(Grid grid) {
+      return grid.save(filename);
+    }
+  }
+
+  // anything the parser did not recognize
+  static class Unknown extends Command {
+    Unknown(String text) {
+      super(text);
+    }
+
+    public boolean failed() {
+      return true;
+    }
+
+    public String execute(Grid grid) {
+      return "unknown or malformed command: " + text;
+    }
+  }
+}
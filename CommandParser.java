@@ -0,0 +1,237 @@
+import java.util.*;
+
+/*
+ * The CommandParser turns the text of a Grid command into a typed Command.
+ * It reads the first word of the command once and looks it up in a table
+ * of keywords, so the cost of recognizing a command does not grow with the
+ * number of commands the Grid supports. Commands that do not start with a
+ * keyword are assignments ([cell] = [expression]) or a bare cell name.
+ *
+ * The parser only splits the command into its pieces. It does not check
+ * whether a cell is inside the grid or whether an expression is valid; the
+ * Grid does that when the command runs.
+ */
+public class CommandParser {
+
+  // builds the command for one keyword
+  private interface KeywordParser {
+    Command parse(String text, Words words);
+  }
+
+  // keyword (lower case) -> the parser for the rest of the command
+  private static final HashMap<String, KeywordParser> keywords = new HashMap<String, KeywordParser>();
+
+  static {
+    keywords.put("print", CommandParser::parsePrint);
+    keywords.put("rows", CommandParser::parseProperty);
+    keywords.put("cols", CommandParser::parseProperty);
+    keywords.put("width", CommandParser::parseProperty);
+    keywords.put("calc", CommandParser::parseCalc);
+    keywords.put("value", (text, words) -> new Command.Value(text, words.rest().trim()));
+    keywords.put("display", (text, words) -> new Command.Display(text, words.next()));
+    keywords.put("expr", (text, words) -> new Command.Expression(text, words.next(), false));
+    keywords.put("clear", CommandParser::parseClear);
+    keywords.put("save", (text, words) -> new Command.Save(text, words.next()));
+    keywords.put("sum", (text, words) -> parseAggregate(text, words, ExpressionLexer.SUM));
+    keywords.put("avg", (text, words) -> parseAggregate(text, words, ExpressionLexer.AVG));
+    keywords.put("min", (text, words) -> parseAggregate(text, words, ExpressionLexer.MIN));
+    keywords.put("max", (text, words) -> parseAggregate(text, words, ExpressionLexer.MAX));
+    keywords.put("count", (text, words) -> parseAggregate(text, words, ExpressionLexer.COUNT));
+    keywords.put("median", (text, words) -> parseAggregate(text, words, ExpressionLexer.MEDIAN));
+    keywords.put("topk", (text, words) -> parseRank(text, words, ExpressionLexer.TOPK));
+    keywords.put("bottomk", (text, words) -> parseRank(text, words, ExpressionLexer.BOTTOMK));
+    keywords.put("nth", (text, words) -> parseRank(text, words, ExpressionLexer.NTH));
+    keywords.put("sorta", (text, words) -> parseSort(text, words, false));
+    keywords.put("sortd", (text, words) -> parseSort(text, words, true));
+    keywords.put("sortrows", CommandParser::parseSortRows);
+  }
+
+  /*
+   * Parses one command.
+   *
+   * Parameters:
+   *    text : The command, such as "a1 = ( b1 * 2 )" or "sorta a1 - a5".
+   * Returns:
+   *    The typed command. Text that is not a command becomes Command.Unknown.
+   */
+  public static Command parse(String text) {
+    Words words = new Words(text);
+    String first = words.next();
+    KeywordParser parser = keywords.get(first.toLowerCase());
+    if (parser != null) {
+      return parser.parse(text, words);
+    }
+
+    // [cell] = [expression], or just [cell]
+    if (CellAddress.nameLength(first, 0, first.length()) > 0) {
+      int equals = text.indexOf('=');
+      if (equals < 0) {
+        return new Command.Expression(text, first, true);
+      }
+      if (words.next().equals("=")) {
+        return new Command.Assign(text, first, text.substring(equals + 1));
+      }
+    }
+    return new Command.Unknown(text);
+  }
+
+  // rows, cols or width, optionally followed by = [value]
+  private static Command parseProperty(String text, Words words) {
+    String name = words.word().toLowerCase();
+    String value = parseSetValue(words);
+    return new Command.Property(text, name, value);
+  }
+
+  // calc [setting], optionally followed by = [value]
+  private static Command parseCalc(String text, Words words) {
+    String setting = words.next().toLowerCase();
+    String value = parseSetValue(words);
+    return new Command.Calc(text, setting, value);
+  }
+
+  // reads "= [value]" at the end of a command, returning null when the
+  // command is not exactly in that form
+  private static String parseSetValue(Words words) {
+    if (!words.next().equals("=")) {
+      return null;
+    }
+    String value = words.next();
+    if (value.length() == 0 || words.next().length() > 0) {
+      return null;
+    }
+    return value;
+  }
+
+  // print, or print [start] - [end]
+  private static Command parsePrint(String text, Words words) {
+    if (words.rest().trim().length() == 0) {
+      return new Command.Print(text, null, null);
+    }
+    String[] window = splitRange(words);
+    if (window == null) {
+      return new Command.Unknown(text);
+    }
+    return new Command.Print(text, window[0], window[1]);
+  }
+
+  // clear, or clear [cell]
+  private static Command parseClear(String text, Words words) {
+    if (text.equals("clear")) {
+      return new Command.Clear(text, null);
+    }
+    return new Command.Clear(text, words.next());
+  }
+
+  // sum, avg, min, max, count or median followed by [start] - [end]
+  private static Command parseAggregate(String text, Words words, int function) {
+    String[] range = splitRange(words);
+    if (range == null) {
+      return new Command.Unknown(text);
+    }
+    return new Command.Aggregate(text, function, range[0], range[1]);
+  }
+
+  // topk, bottomk or nth followed by [k] [start] - [end], where k is a
+  // whole number of at least 1
+  private static Command parseRank(String text, Words words, int function) {
+    int k;
+    try {
+      k = Integer.parseInt(words.next());
+    } catch (NumberFormatException e) {
+      return new Command.Unknown(text);
+    }
+    String[] range = splitRange(words);
+    if (k < 1 || range == null) {
+      return new Command.Unknown(text);
+    }
+    return new Command.Rank(text, function, k, range[0], range[1]);
+  }
+
+  // sorta or sortd followed by [start] - [end]
+  private static Command parseSort(String text, Words words, boolean descending) {
+    String[] range = splitRange(words);
+    if (range == null) {
+      return new Command.Unknown(text);
+    }
+    return new Command.Sort(text, descending, range[0], range[1]);
+  }
+
+  // sortrows [start] - [end] by [column] [asc or desc], [column] ...
+  private static Command parseSortRows(String text, Words words) {
+    String rest = words.rest();
+    int by = rest.toLowerCase().indexOf(" by ");
+    if (by < 0) {
+      return new Command.Unknown(text);
+    }
+    String[] range = splitRange(new Words(rest.substring(0, by)));
+    String[] keys = rest.substring(by + 4).split(",");
+    if (range == null) {
+      return new Command.Unknown(text);
+    }
+    int[] columns = new int[keys.length];
+    boolean[] descending = new boolean[keys.length];
+    for (int index = 0; index < keys.length; index++) {
+      Words key = new Words(keys[index]);
+      columns[index] = CellAddress.parseColumn(key.next());
+      String order = key.next().toLowerCase();
+      if (columns[index] < 0 || !key.next().isEmpty()
+          || !(order.isEmpty() || order.equals("asc") || order.equals("desc"))) {
+        return new Command.Unknown(text);
+      }
+      descending[index] = order.equals("desc");
+    }
+    return new Command.SortRows(text, range[0], range[1], columns, descending);
+  }
+
+  // splits the rest of the command, such as "a1 - c5", into its start and
+  // end cells, or returns null if it is not a range
+  private static String[] splitRange(Words words) {
+    String range = words.rest();
+    int dash = range.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    String start = range.substring(0, dash).trim();
+    String end = range.substring(dash + 1).trim();
+    if (start.length() < 2 || end.length() < 2) {
+      return null;
+    }
+    return new String[] { start, end };
+  }
+
+  /*
+   * A cursor over the space separated words of a command.
+   */
+  static class Words {
+    private final String text;
+    private int position = 0;
+    private String word = "";
+
+    Words(String text) {
+      this.text = text;
+    }
+
+    // moves to the next word and returns it, or "" at the end of the text
+    String next() {
+      while (position < text.length() && text.charAt(position) == ' ') {
+        position++;
+      }
+      int start = position;
+      while (position < text.length() && text.charAt(position) != ' ') {
+        position++;
+      }
+      word = text.substring(start, position);
+      return word;
+    }
+
+    // returns the word that next() returned last
+    String word() {
+      return word;
+    }
+
+    // returns everything after the current word
+    String rest() {
+      return text.substring(position);
+    }
+  }
+}
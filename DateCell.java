@@ -1,30 +1,110 @@
-import java.text.DateFormat;
-import java.util.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
 /*
- *   Takes a date expression in the slash format (ex: 1/3/99) and renders a 
+ *   Takes a date expression in the slash format (ex: 1/3/99) and renders a
  *   short date format such as: Jan 3, 1999.
- *   The value of this cell is zero.
+ *   The value of this cell is the date as a day number: the number of days
+ *   since Jan 1, 1970 (the epoch day), so ( a1 + 30 ) is the date 30 days
+ *   later and the range functions work over dates. An invalid date has a
+ *   value of zero, like text.
  *
+ *   The expression is parsed once, when it is set, and the text shown for
+ *   the date is made then as well, so showing the cell allocates nothing.
  */
 public class DateCell extends Cell {
     // Annotate the website(s) you used to get help.
     // https://www.journaldev.com/17899/java-simpledateformat-java-date-format
     // http://web.cs.ucla.edu/classes/winter15/cs144/projects/java/simpledateformat.html
 
+  // the format dates are shown in, like Jan 3, 1999. A DateTimeFormatter
+  // never changes, so one is shared by every cell and thread.
+  private static final DateTimeFormatter format = DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM);
+
+  // a year written with one or two digits is put in the hundred years that
+  // start 80 years before this year, so 22 is 2022 and 99 is 1999
+  private static final int centuryStart = LocalDate.now().getYear() - 80;
+
+  // the parts of a date longer than this are not read as numbers
+  private static final int MAX_DIGITS = 9;
+
+  // the epoch day of the date, and whether the expression is a date at all
+  private long day = 0;
+  private boolean valid = false;
+  private String display = "invalid date";
+
+  // sets the expression and parses it into the day it stands for
+  public boolean setExpression(String expression) {
+    super.setExpression(expression);
+    LocalDate date = parse(expression);
+    valid = date != null;
+    day = valid ? date.toEpochDay() : 0;
+    display = valid ? format.format(date) : "invalid date";
+    return true;
+  }
+
+  // returns the epoch day of the date, or 0 for an invalid date
+  public double getValue() {
+    return day;
+  }
+
+  // returns true if the expression is a date that could be read
+  public boolean isValid() {
+    return valid;
+  }
+
   // is a method that returns the String version of the date
-    public String toString() {  
-      try {
-        // creates a new object date of the expression entered by the user
-        // and gets the instance and formates the date correctly as a string
-        Date date = new Date(getExpression());
-        String dateString = DateFormat.getDateInstance().format(date);
-        return dateString;
-      } 
-      // if there is an exception this will catch it and state that the date
-      // entered is invalid
-      catch (Exception e) {
-        return "invalid date";
+  public String toString() {
+    return display;
+  }
+
+  /*
+   * Reads a date written as month/day/year, like 1/3/99 or 12/31/1999
+   * (ignoring the spaces around it). As with the old java.util.Date parser
+   * the month and day may run over, so 2/30/22 is Mar 2, 2022 and 1/0/99 is
+   * Dec 31, 1998, but a month of 0 is not a date.
+   *
+   * Returns:
+   *    The date, or null if text is not a date.
+   */
+  private static LocalDate parse(String text) {
+    String date = text.trim();
+    int[] parts = new int[3];
+    int part = 0;
+    int digits = 0;
+    for (int index = 0; index < date.length(); index++) {
+      char ch = date.charAt(index);
+      if (ch == '/') {
+        if (digits == 0 || part == 2) {
+          return null;
+        }
+        part++;
+        digits = 0;
+      } else if (ch >= '0' && ch <= '9') {
+        if (++digits > MAX_DIGITS) {
+          return null;
+        }
+        parts[part] = parts[part] * 10 + (ch - '0');
+      } else {
+        return null;
+      }
+    }
+    if (part != 2 || digits == 0 || parts[0] == 0) {
+      return null;
+    }
+    int year = parts[2];
+    if (year < 100) {
+      year += centuryStart / 100 * 100;
+      if (year < centuryStart) {
+        year += 100;
       }
     }
-  
+    try {
+      return LocalDate.of(year, 1, 1).plusMonths(parts[0] - 1).plusDays(parts[1] - 1);
+    } catch (RuntimeException e) {
+      // the year is outside the dates java.time can hold
+      return null;
+    }
+  }
+
 }
@@ -0,0 +1,357 @@
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * The DependencyGraph keeps track of which cells read which other cells.
+ * The Grid updates it every time a cell is set or cleared. When a cell
+ * changes, the graph answers which formulas read that cell, and the Grid
+ * walks on from those to the formulas that read them, so that only those
+ * formulas need to be recalculated.
+ *
+ * Cells are identified by a key that packs the row and column into a long.
+ * A formula may read single cells (a1) or whole ranges (sum a1 - c9). Single
+ * cell references are kept in a map from the referenced cell to its readers.
+ * Range references are filed in buckets by their size and position, so that
+ * finding the ranges that hold a cell only looks at the few buckets such a
+ * range could be in, rather than at every range in the sheet:
+ *
+ *     a range 2^kr to 2^(kr+1) - 1 rows tall and 2^kc to 2^(kc+1) - 1
+ *     columns wide is in size class kr, kc, and is filed under its class
+ *     and the block of 2^kr rows by 2^kc columns its top left cell is in.
+ *     A range of that class that holds row r starts less than 2^(kr+1)
+ *     rows above it, so at most 3 blocks of rows (and 3 of columns) have
+ *     to be looked at for each size class in use.
+ *
+ * Writers on different threads update the graph as they set cells, so
+ * every method that reads or changes it is synchronized. Each call only
+ * holds the graph for as long as the maps are walked, and never waits for
+ * anything else while it does.
+ */
+public class DependencyGraph {
+
+  // referenced cell key -> keys of the formula cells that read it
+  private HashMap<Long, HashSet<Long>> dependents = new HashMap<Long, HashSet<Long>>();
+
+  // formula cell key -> the references it reads, as {startRow, startCol, endRow, endCol}
+  private HashMap<Long, List<int[]>> precedents = new HashMap<Long, List<int[]>>();
+
+  // formula cell key -> the ranges (more than one cell) it reads
+  private HashMap<Long, List<int[]>> rangeReaders = new HashMap<Long, List<int[]>>();
+
+  // bucket (see bucket()) -> the ranges filed in it and the cells reading them
+  private HashMap<Long, ArrayList<RangeReader>> rangeBuckets = new HashMap<Long, ArrayList<RangeReader>>();
+
+  // how many ranges there are of each size class [kr][kc], and the size
+  // classes in use as kr << 5 | kc
+  private int[][] classCounts = new int[32][32];
+  private int[] classesInUse = new int[0];
+  private int rangeCount = 0;
+
+  // how many times a cell has been given references to read
+  private long additions = 0;
+
+  // a range read by a formula, and the key of the formula cell
+  private static final class RangeReader {
+    final int[] range;
+    final long cell;
+
+    RangeReader(int[] range, long cell) {
+      this.range = range;
+      this.cell = cell;
+    }
+  }
+
+  // packs a row and column into a single key
+  public static long key(int row, int col) {
+    return ((long) row << 32) | (col & 0xffffffffL);
+  }
+
+  // gets the row back out of a key
+  public static int row(long key) {
+    return (int) (key >> 32);
+  }
+
+  // gets the column back out of a key
+  public static int col(long key) {
+    return (int) key;
+  }
+
+  /*
+   * Records the references read by the cell at row, col. Any references the
+   * cell had before are forgotten.
+   *
+   * Parameters:
+   *    row, col : The location of the formula cell.
+   *    refs     : The references it reads, as {startRow, startCol, endRow, endCol}.
+   */
+  public synchronized void setPrecedents(int row, int col, List<int[]> refs) {
+    long cell = key(row, col);
+    removeCell(row, col);
+    if (refs == null || refs.isEmpty()) {
+      return;
+    }
+    precedents.put(cell, refs);
+    additions++;
+    for (int[] ref : refs) {
+      if (ref[0] == ref[2] && ref[1] == ref[3]) {
+        long target = key(ref[0], ref[1]);
+        HashSet<Long> readers = dependents.get(target);
+        if (readers == null) {
+          readers = new HashSet<Long>();
+          dependents.put(target, readers);
+        }
+        readers.add(cell);
+      } else {
+        List<int[]> ranges = rangeReaders.get(cell);
+        if (ranges == null) {
+          ranges = new ArrayList<int[]>();
+          rangeReaders.put(cell, ranges);
+        }
+        ranges.add(ref);
+        fileRange(ref, cell);
+      }
+    }
+  }
+
+  // forgets every reference read by the cell at row, col
+  public synchronized void removeCell(int row, int col) {
+    long cell = key(row, col);
+    List<int[]> refs = precedents.remove(cell);
+    List<int[]> ranges = rangeReaders.remove(cell);
+    if (ranges != null) {
+      for (int[] range : ranges) {
+        unfileRange(range, cell);
+      }
+    }
+    if (refs == null) {
+      return;
+    }
+    for (int[] ref : refs) {
+      if (ref[0] == ref[2] && ref[1] == ref[3]) {
+        long target = key(ref[0], ref[1]);
+        HashSet<Long> readers = dependents.get(target);
+        if (readers != null) {
+          readers.remove(cell);
+          if (readers.isEmpty()) {
+            dependents.remove(target);
+          }
+        }
+      }
+    }
+  }
+
+  // forgets the whole graph
+  public synchronized void clear() {
+    dependents.clear();
+    precedents.clear();
+    rangeReaders.clear();
+    rangeBuckets.clear();
+    classCounts = new int[32][32];
+    classesInUse = new int[0];
+    rangeCount = 0;
+  }
+
+  // returns a count that moves every time a cell is given references to
+  // read, so a caller can tell whether a set of dependents it walked may
+  // have grown since (removing references never makes it grow)
+  public synchronized long getAdditions() {
+    return additions;
+  }
+
+  // returns the references read by the cell at key, or null if it reads none
+  public synchronized List<int[]> getPrecedents(long cell) {
+    return precedents.get(cell);
+  }
+
+  /*
+   * Adds the keys of the formula cells that directly read the cell at
+   * row, col to result. A formula that reads the cell more than once may
+   * be added more than once.
+   */
+  public void addDirectDependents(int row, int col, Collection<Long> result) {
+    forEachDirectDependent(row, col, result::add);
+  }
+
+  /*
+   * Calls action with the key of every formula cell that directly reads
+   * the cell at row, col, without boxing the keys. action runs while the
+   * graph is held, so it must not wait for another thread.
+   */
+  public synchronized void forEachDirectDependent(int row, int col, LongConsumer action) {
+    HashSet<Long> readers = dependents.get(key(row, col));
+    if (readers != null) {
+      for (long reader : readers) {
+        action.accept(reader);
+      }
+    }
+    for (int sizeClass : classesInUse) {
+      int rowClass = sizeClass >> 5;
+      int colClass = sizeClass & 31;
+      // a range of this class that holds row, col starts in one of these blocks
+      int firstRowBlock = Math.max(row - (2 << rowClass) + 1, 0) >> rowClass;
+      int firstColBlock = Math.max(col - (2 << colClass) + 1, 0) >> colClass;
+      for (int rowBlock = firstRowBlock; rowBlock <= row >> rowClass; rowBlock++) {
+        for (int colBlock = firstColBlock; colBlock <= col >> colClass; colBlock++) {
+          ArrayList<RangeReader> bucket = rangeBuckets.get(bucket(rowClass, colClass, rowBlock, colBlock));
+          if (bucket == null) {
+            continue;
+          }
+          for (RangeReader reader : bucket) {
+            int[] range = reader.range;
+            if (row >= range[0] && row <= range[2] && col >= range[1] && col <= range[3]) {
+              action.accept(reader.cell);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   * Calls action with the key of every formula cell that directly reads
+   * any of the cells, like forEachDirectDependent(row, col, action) for
+   * each of them. A range read by a formula is only looked at once, so
+   * when many cells changed (as after a bulk load) every range is checked
+   * against the changed cells of the columns it covers, instead of every
+   * changed cell looking up the ranges that hold it. A formula may be
+   * passed more than once.
+   */
+  public synchronized void forEachDirectDependent(Collection<Long> cells, LongConsumer action) {
+    if ((long) cells.size() * classesInUse.length < rangeCount) {
+      for (long cell : cells) {
+        forEachDirectDependent(row(cell), col(cell), action);
+      }
+      return;
+    }
+    for (long cell : cells) {
+      HashSet<Long> readers = dependents.get(cell);
+      if (readers != null) {
+        for (long reader : readers) {
+          action.accept(reader);
+        }
+      }
+    }
+    if (rangeCount == 0) {
+      return;
+    }
+
+    // the changed cells as col << 32 | row, sorted by column and then row
+    long[] sorted = new long[cells.size()];
+    int index = 0;
+    for (long cell : cells) {
+      sorted[index++] = ((long) col(cell) << 32) | row(cell);
+    }
+    Arrays.sort(sorted);
+    for (ArrayList<RangeReader> bucket : rangeBuckets.values()) {
+      for (RangeReader reader : bucket) {
+        if (holdsAny(reader.range, sorted)) {
+          action.accept(reader.cell);
+        }
+      }
+    }
+  }
+
+  // returns true if the range holds any of the cells, given as
+  // col << 32 | row in ascending order
+  private static boolean holdsAny(int[] range, long[] sorted) {
+    for (int col = range[1]; col <= range[3]; col++) {
+      // the first cell at or below the top of the range in this column
+      long first = ((long) col << 32) | range[0];
+      int low = 0;
+      int high = sorted.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (sorted[middle] < first) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      if (low == sorted.length) {
+        return false;
+      }
+      long cell = sorted[low];
+      if ((int) (cell >> 32) == col && (int) cell <= range[2]) {
+        return true;
+      }
+      // skip the columns that hold no changed cell at all
+      col = Math.max(col, (int) (cell >> 32) - 1);
+    }
+    return false;
+  }
+
+  // returns the size class of a range that is length rows (or columns) long
+  private static int sizeClass(int length) {
+    return 31 - Integer.numberOfLeadingZeros(Math.max(length, 1));
+  }
+
+  // returns the key of the bucket of size class rowClass, colClass that
+  // holds the ranges starting in block rowBlock, colBlock
+  private static long bucket(int rowClass, int colClass, int rowBlock, int colBlock) {
+    return ((long) rowClass << 58) | ((long) colClass << 52) | ((long) rowBlock << 24) | colBlock;
+  }
+
+  // returns the bucket a range is filed in
+  private static long bucketOf(int[] range) {
+    int rowClass = sizeClass(range[2] - range[0] + 1);
+    int colClass = sizeClass(range[3] - range[1] + 1);
+    return bucket(rowClass, colClass, range[0] >> rowClass, range[1] >> colClass);
+  }
+
+  // files the range read by the formula cell in its bucket
+  private void fileRange(int[] range, long cell) {
+    long bucket = bucketOf(range);
+    ArrayList<RangeReader> readers = rangeBuckets.get(bucket);
+    if (readers == null) {
+      readers = new ArrayList<RangeReader>();
+      rangeBuckets.put(bucket, readers);
+    }
+    readers.add(new RangeReader(range, cell));
+    countClass(range, 1);
+  }
+
+  // takes the range read by the formula cell out of its bucket
+  private void unfileRange(int[] range, long cell) {
+    long bucket = bucketOf(range);
+    ArrayList<RangeReader> readers = rangeBuckets.get(bucket);
+    if (readers == null) {
+      return;
+    }
+    for (int index = readers.size() - 1; index >= 0; index--) {
+      RangeReader reader = readers.get(index);
+      if (reader.range == range && reader.cell == cell) {
+        // the order within a bucket does not matter
+        readers.set(index, readers.get(readers.size() - 1));
+        readers.remove(readers.size() - 1);
+        countClass(range, -1);
+        break;
+      }
+    }
+    if (readers.isEmpty()) {
+      rangeBuckets.remove(bucket);
+    }
+  }
+
+  // counts a range of the size class of range in or out, and updates the
+  // list of classes in use when a class starts or stops being used
+  private void countClass(int[] range, int change) {
+    int rowClass = sizeClass(range[2] - range[0] + 1);
+    int colClass = sizeClass(range[3] - range[1] + 1);
+    int before = classCounts[rowClass][colClass];
+    classCounts[rowClass][colClass] = before + change;
+    rangeCount += change;
+    if ((before == 0) != (before + change == 0)) {
+      int count = 0;
+      int[] classes = new int[32 * 32];
+      for (int rows = 0; rows < 32; rows++) {
+        for (int cols = 0; cols < 32; cols++) {
+          if (classCounts[rows][cols] > 0) {
+            classes[count++] = rows << 5 | cols;
+          }
+        }
+      }
+      classesInUse = Arrays.copyOf(classes, count);
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * An ErrorValue is the result of a formula that cannot be calculated, such
+ * as a division by zero. Instead of throwing an exception (or returning a
+ * made-up number), evaluation returns an error as an ordinary double: a NaN
+ * whose spare bits hold the error code. Formulas check their operands with
+ * isError() and pass an error on unchanged, so one bad cell turns the
+ * formulas that read it into the same error without anything being thrown.
+ *
+ * The errors are:
+ *     #DIV/0!  : division by zero
+ *     #REF!    : a reference to a cell outside the grid
+ *     #VALUE!  : a result that is not a number
+ *     #CYCLE!  : a formula that reads itself, directly or through other cells
+ *     #NUM!    : a log, square root or power that has no finite result,
+ *                like log 0 or sqrt ( -1 )
+ */
+public class ErrorValue {
+
+  // the error codes
+  public static final int DIV_ZERO = 1;
+  public static final int REF = 2;
+  public static final int VALUE = 3;
+  public static final int CYCLE = 4;
+  public static final int NUM = 5;
+
+  private static final String[] names = { "", "#DIV/0!", "#REF!", "#VALUE!", "#CYCLE!", "#NUM!" };
+
+  // a quiet NaN with a marker in its upper payload bits; the code goes in
+  // the lowest byte
+  private static final long TAG = 0x7ffbadc0de000000L;
+  private static final long TAG_MASK = 0xffffffffff000000L;
+
+  // the errors as doubles, ready to be returned by a formula
+  public static final double DIV_ZERO_ERROR = of(DIV_ZERO);
+  public static final double REF_ERROR = of(REF);
+  public static final double VALUE_ERROR = of(VALUE);
+  public static final double CYCLE_ERROR = of(CYCLE);
+  public static final double NUM_ERROR = of(NUM);
+
+  // returns the error with the given code as a double
+  public static double of(int code) {
+    return Double.longBitsToDouble(TAG | code);
+  }
+
+  // returns true if value is one of the errors
+  public static boolean isError(double value) {
+    return (Double.doubleToRawLongBits(value) & TAG_MASK) == TAG;
+  }
+
+  // returns the code of an error, or 0 if value is not an error
+  public static int code(double value) {
+    if (!isError(value)) {
+      return 0;
+    }
+    return (int) (Double.doubleToRawLongBits(value) & 0xff);
+  }
+
+  /*
+   * Checks the result of an operation. A NaN that is not already an error
+   * becomes #VALUE!.
+   *
+   * Returns:
+   *    The value itself, or an error.
+   */
+  public static double check(double value) {
+    if (value != value && !isError(value)) {
+      return VALUE_ERROR;
+    }
+    return value;
+  }
+
+  /*
+   * Checks the result of a log, square root or power. A result that is not
+   * finite (log 0 is -Infinity, sqrt ( -1 ) is NaN) becomes #NUM!, so it
+   * is not passed on as a number.
+   *
+   * Returns:
+   *    The value itself, or an error.
+   */
+  public static double checkMath(double value) {
+    if (!Double.isFinite(value) && !isError(value)) {
+      return NUM_ERROR;
+    }
+    return value;
+  }
+
+  /*
+   * Returns how a value is shown: the name of the error, like #DIV/0!, for
+   * an error and the usual double text otherwise.
+   */
+  public static String format(double value) {
+    int code = code(value);
+    if (code > 0 && code < names.length) {
+      return names[code];
+    }
+    return value + "";
+  }
+}
@@ -41,7 +41,8 @@ public abstract class ExcelBase {
     public static Scanner console = new Scanner(System.in);
 
     // This allows any client code to leverage the single excel engine.
-    public static ExcelBase engine = null;
+    // It is volatile so that every thread sees the engine once it is set.
+    public static volatile ExcelBase engine = null;
 
     private Method launchUI = null;
     private Object mainUIObj = null;
@@ -137,4 +138,40 @@ public abstract class ExcelBase {
      */
     abstract public String processCommand(String input);
 
+    /**
+     * Gets the strings that a rectangular region of the grid displays, in one
+     * call, instead of sending a display command for every cell.
+     * 
+     * @param startRow The first row of the region (0-based).
+     * @param startCol The first column of the region (0-based).
+     * @param endRow   The last row of the region, inclusive.
+     * @param endCol   The last column of the region, inclusive.
+     * @return the display strings, indexed [row - startRow][col - startCol]
+     */
+    public String[][] getDisplaySnapshot(int startRow, int startCol, int endRow, int endCol) {
+        return GridBase.grid.getDisplaySnapshot(startRow, startCol, endRow, endCol);
+    }
+
+    /**
+     * @return the version of the most recent change to the grid
+     */
+    public long getVersion() {
+        return GridBase.grid.getVersion();
+    }
+
+    /**
+     * Finds the cells of a rectangular region of the grid that changed after a
+     * version, so that a UI only needs to refresh those.
+     * 
+     * @param version  The version the caller last saw (see getVersion).
+     * @param startRow The first row of the region (0-based).
+     * @param startCol The first column of the region (0-based).
+     * @param endRow   The last row of the region, inclusive.
+     * @param endCol   The last column of the region, inclusive.
+     * @return the changed cells, each one as {row, col}
+     */
+    public List<int[]> getChangedSince(long version, int startRow, int startCol, int endRow, int endCol) {
+        return GridBase.grid.getChangedSince(version, startRow, startCol, endRow, endCol);
+    }
+
 }
\ No newline at end of file
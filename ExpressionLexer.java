@@ -0,0 +1,315 @@
+/*
+ * The ExpressionLexer is a cursor over the characters of an expression. It
+ * recognizes the same tokens as GridBase.smartSplit(), but instead of
+ * building a String for every token it only remembers the type of the
+ * current token and where it starts and ends. Numbers are converted straight
+ * from the characters, so walking over an expression allocates nothing.
+ *
+ * Typical use:
+ *     ExpressionLexer lexer = new ExpressionLexer(expression);
+ *     while (lexer.next() != ExpressionLexer.END) {
+ *       ... look at lexer.type(), lexer.start(), lexer.end() ...
+ *     }
+ * A malformed expression produces an ERROR token, after which next() keeps
+ * returning ERROR.
+ */
+public class ExpressionLexer {
+
+  // the token types
+  public static final int END = 0;
+  public static final int NUMBER = 1;
+  public static final int CELL = 2;
+  public static final int FUNCTION = 3;
+  public static final int OPERATOR = 4;
+  public static final int OPEN = 5;
+  public static final int CLOSE = 6;
+  public static final int COLON = 7;
+  public static final int ERROR = 8;
+
+  // the function codes
+  public static final int AVG = 0;
+  public static final int SUM = 1;
+  public static final int SQRT = 2;
+  public static final int LOG = 3;
+  public static final int SORTA = 4;
+  public static final int SORTD = 5;
+  public static final int MIN = 6;
+  public static final int MAX = 7;
+  public static final int COUNT = 8;
+  public static final int TOPK = 9;
+  public static final int BOTTOMK = 10;
+  public static final int MEDIAN = 11;
+  public static final int NTH = 12;
+
+  private static final String[] functionNames = { "avg", "sum", "sqrt", "log", "sorta", "sortd",
+      "min", "max", "count", "topk", "bottomk", "median", "nth" };
+
+  private static final String mathOperators = "+-/*%^";
+
+  // exact powers of ten, used to convert short numbers without rounding twice
+  private static final double[] powersOfTen = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+      1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+  private CharSequence exp;
+  private int length;
+  private int position;
+
+  private int type;
+  private int start;
+  private int end;
+  private int function;
+
+  // creates a lexer positioned before the first token of exp
+  public ExpressionLexer(CharSequence exp) {
+    reset(exp);
+  }
+
+  // starts over on a new expression, so one lexer can be reused
+  public void reset(CharSequence exp) {
+    this.exp = exp;
+    this.length = exp.length();
+    this.position = 0;
+    this.type = END;
+    this.start = 0;
+    this.end = 0;
+    this.function = -1;
+  }
+
+  // returns the type of the current token
+  public int type() {
+    return type;
+  }
+
+  // returns the index of the first character of the current token
+  public int start() {
+    return start;
+  }
+
+  // returns the index just past the last character of the current token
+  public int end() {
+    return end;
+  }
+
+  // returns the expression being read
+  public CharSequence expression() {
+    return exp;
+  }
+
+  // returns the function code (AVG, SUM, ...) of a FUNCTION token
+  public int function() {
+    return function;
+  }
+
+  // returns the character of an OPERATOR token
+  public char operator() {
+    return exp.charAt(start);
+  }
+
+  // returns true if the current token is exactly the text s
+  public boolean tokenEquals(String s) {
+    if (end - start != s.length()) {
+      return false;
+    }
+    for (int index = 0; index < s.length(); index++) {
+      if (exp.charAt(start + index) != s.charAt(index)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // returns the current token as a String. This allocates, so it is
+  // meant for error messages and for callers that really need the text.
+  public String text() {
+    return exp.subSequence(start, end).toString();
+  }
+
+  /*
+   * Moves to the next token.
+   *
+   * Returns:
+   *    The type of the new current token.
+   */
+  public int next() {
+    if (type == ERROR) {
+      return ERROR;
+    }
+    while (position < length && exp.charAt(position) == ' ') {
+      position++;
+    }
+    start = position;
+    if (position >= length) {
+      end = position;
+      return type = END;
+    }
+
+    char ch = exp.charAt(position);
+    if (Character.isAlphabetic(ch)) {
+      // we are a cell location or function
+      int funcLength = functionLength(position);
+      if (funcLength > 0) {
+        return token(FUNCTION, position + funcLength);
+      }
+      int cellLength = cellNameLength(position);
+      if (cellLength == 0) {
+        return token(ERROR, position);
+      }
+      return token(CELL, position + cellLength);
+    }
+    if (Character.isDigit(ch) || ch == '.'
+        || (ch == '-' && position + 1 < length && Character.isDigit(exp.charAt(position + 1)))) {
+      // we are a number. Must end with an operator, ), or space.
+      int index = position + 1;
+      while (index < length && (Character.isDigit(exp.charAt(index)) || exp.charAt(index) == '.')) {
+        index++;
+      }
+      char next = index < length ? exp.charAt(index) : ' ';
+      if (next == ':' || !isSeparator(next)) {
+        return token(ERROR, position);
+      }
+      return token(NUMBER, index);
+    }
+    if (mathOperators.indexOf(ch) >= 0) {
+      return token(OPERATOR, position + 1);
+    }
+    if (ch == '(') {
+      return token(OPEN, position + 1);
+    }
+    if (ch == ')') {
+      return token(CLOSE, position + 1);
+    }
+    if (ch == ':') {
+      return token(COLON, position + 1);
+    }
+    return token(ERROR, position);
+  }
+
+  // records the current token and moves the cursor past it
+  private int token(int type, int end) {
+    this.type = type;
+    this.end = end;
+    this.position = end;
+    return type;
+  }
+
+  /*
+   * Converts the current NUMBER token to a double. Numbers with up to 15
+   * significant digits are converted directly from the characters; anything
+   * longer falls back to Double.parseDouble.
+   *
+   * Returns:
+   *    The value of the number, or NaN if it has no digits or more than one
+   *    decimal point.
+   */
+  public double numberValue() {
+    int index = start;
+    boolean negative = false;
+    if (exp.charAt(index) == '-') {
+      negative = true;
+      index++;
+    }
+    long mantissa = 0;
+    boolean anyDigit = false;
+    int digits = 0;
+    int decimals = 0;
+    boolean point = false;
+    for (; index < end; index++) {
+      char ch = exp.charAt(index);
+      if (ch == '.') {
+        if (point) {
+          return Double.NaN;
+        }
+        point = true;
+        continue;
+      }
+      anyDigit = true;
+      if (mantissa != 0 || ch != '0') {
+        digits++;
+      }
+      mantissa = mantissa * 10 + (ch - '0');
+      if (point) {
+        decimals++;
+      }
+      if (digits > 15) {
+        return Double.parseDouble(text());
+      }
+    }
+    if (!anyDigit) {
+      return Double.NaN;
+    }
+    if (decimals >= powersOfTen.length) {
+      return Double.parseDouble(text());
+    }
+    double value = mantissa / powersOfTen[decimals];
+    return negative ? -value : value;
+  }
+
+  // returns true if ch may follow a number or a cell name
+  private static boolean isSeparator(char ch) {
+    return ch == ' ' || ch == '(' || ch == ')' || ch == ':' || mathOperators.indexOf(ch) >= 0;
+  }
+
+  /*
+   * Checks whether a cell name (column letters and a row number, see
+   * CellAddress) starts at index.
+   *
+   * Returns:
+   *    The number of characters in the cell name, or 0 if there is none.
+   */
+  private int cellNameLength(int index) {
+    int nameLength = CellAddress.nameLength(exp, index, length);
+    if (nameLength == 0) {
+      return 0;
+    }
+    int after = index + nameLength;
+    if (after < length && !isSeparator(exp.charAt(after))) {
+      return 0;
+    }
+    if (CellAddress.parse(exp, index, after) == CellAddress.INVALID) {
+      return 0;
+    }
+    return nameLength;
+  }
+
+  /*
+   * Checks whether a function name starts at index. A function name must be
+   * followed by a space, an open parenthesis or a cell name.
+   *
+   * Returns:
+   *    The number of characters in the function name, or 0 if there is none.
+   */
+  private int functionLength(int index) {
+    int found = -1;
+    for (int func = 0; func < functionNames.length; func++) {
+      if (startsWithIgnoreCase(index, functionNames[func])) {
+        found = func;
+      }
+    }
+    if (found < 0) {
+      return 0;
+    }
+    int after = index + functionNames[found].length();
+    if (after >= length) {
+      return 0;
+    }
+    char ch = exp.charAt(after);
+    if (ch == ' ' || ch == '(' || cellNameLength(after) > 0) {
+      function = found;
+      return functionNames[found].length();
+    }
+    return 0;
+  }
+
+  // returns true if the expression continues with word at index, ignoring case
+  private boolean startsWithIgnoreCase(int index, String word) {
+    if (index + word.length() > length) {
+      return false;
+    }
+    for (int offset = 0; offset < word.length(); offset++) {
+      if (Character.toLowerCase(exp.charAt(index + offset)) != word.charAt(offset)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,970 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * A Formula is the compiled form of a NumberCell expression. The expression
+ * is read by an ExpressionLexer and parsed exactly once, when the cell's expression is set, into
+ * an immutable tree of typed nodes: numbers, cell references, operators and
+ * functions. Evaluating the formula is just a walk over that tree, so reading
+ * a cell never has to tokenize its expression again or keep intermediate
+ * results around as Strings.
+ *
+ * The operator precedence matches what the NumberCell has always used:
+ *     log, sqrt   (applied to the token that follows them)
+ *     ^
+ *     * /
+ *     + -
+ * Operators of the same precedence are evaluated left to right.
+ *
+ * Cell references are kept relative to the cell that holds the formula (its
+ * anchor), the way R1C1 notation writes them: in b2, ( a1 * c2 ) reads
+ * R[-1]C[-1] and R[0]C[1]. A column of formulas like ( b1 * c1 ),
+ * ( b2 * c2 ), ... then has a single shape, and compile() keeps one tree per
+ * shape in a plan cache that every cell with that shape shares. Each
+ * NumberCell only keeps its anchor and passes it to evaluate(), so memory
+ * and parsing grow with the number of distinct shapes, not with the number
+ * of cells.
+ */
+public abstract class Formula {
+
+  // the plan cache: the relative form of an expression (and the shape of a
+  // tree, see intern()) -> the one tree shared by every cell with that shape
+  private static final ConcurrentHashMap<String, Formula> plans = new ConcurrentHashMap<String, Formula>();
+
+  // the references of the tree, relative to the anchor; built the first
+  // time they are asked for
+  private volatile int[][] references;
+
+  // the compiled form of the tree once it has been promoted, and the number
+  // of times it was interpreted before that. The count is not synchronized:
+  // a lost update only delays the promotion a little.
+  private volatile FormulaCompiler.Kernel kernel;
+  private int calls = 0;
+
+  /*
+   * Evaluates this node and everything below it. Cell references and range
+   * functions read the values they need straight from GridBase.grid.
+   *
+   * Parameters:
+   *    row, col : The anchor, the location of the cell that holds the formula.
+   * Returns:
+   *    The double value of this node.
+   */
+  public abstract double evaluate(int row, int col);
+
+  /*
+   * Evaluates the whole formula in its current tier. A formula is
+   * interpreted with evaluate() until it has been run
+   * FormulaCompiler.getThreshold() times; then it is compiled into a hidden
+   * class (see FormulaCompiler) that is used from then on, unless the
+   * compiled tier is turned off.
+   *
+   * Parameters:
+   *    row, col : The anchor, the location of the cell that holds the formula.
+   * Returns:
+   *    The double value of the formula.
+   */
+  public double run(int row, int col) {
+    FormulaCompiler.Kernel compiled = kernel;
+    if (compiled != null) {
+      if (FormulaCompiler.isEnabled()) {
+        return compiled.evaluate(row, col);
+      }
+    } else if (++calls >= FormulaCompiler.getThreshold() && FormulaCompiler.isEnabled()) {
+      promote();
+    }
+    return evaluate(row, col);
+  }
+
+  // compiles the tree, once; a tree that cannot be compiled stays
+  // interpreted and is not tried again
+  private synchronized void promote() {
+    if (kernel == null && calls >= 0) {
+      calls = Integer.MIN_VALUE;
+      kernel = FormulaCompiler.compile(this);
+    }
+  }
+
+  // emits the bytecode of this node into the method being generated by
+  // FormulaCompiler, children before parents
+  abstract void emit(FormulaCompiler.Code code) throws IOException;
+
+  /*
+   * Applies one of the binary operators: ^ * / + -. This is shared by the
+   * interpreter and compiled formulas. An error in either operand is passed
+   * on; dividing by zero gives #DIV/0!, a power with no finite result
+   * gives #NUM! and any other result that is not a number gives #VALUE!.
+   */
+  static double operate(double one, double two, char operator) {
+    if (ErrorValue.isError(one)) {
+      return one;
+    }
+    if (ErrorValue.isError(two)) {
+      return two;
+    }
+    switch (operator) {
+      case '^':
+        return ErrorValue.checkMath(Math.pow(one, two));
+      case '*':
+        return ErrorValue.check(one * two);
+      case '/':
+        if (two == 0) {
+          return ErrorValue.DIV_ZERO_ERROR;
+        }
+        return ErrorValue.check(one / two);
+      case '+':
+        return ErrorValue.check(one + two);
+      default:
+        return ErrorValue.check(one - two);
+    }
+  }
+
+  // applies log or sqrt, shared like operate(). An error in the argument is
+  // passed on; the log of 0 or of a negative number and the square root of
+  // a negative number give #NUM! (see ErrorValue.checkMath).
+  static double function(double num, boolean log) {
+    if (ErrorValue.isError(num)) {
+      return num;
+    }
+    if (log) {
+      return ErrorValue.checkMath(Math.log(num));
+    }
+    return ErrorValue.checkMath(Math.sqrt(num));
+  }
+
+  /*
+   * Adds every cell or range of cells this node reads to refs. Each entry
+   * is {startRow, startCol, endRow, endCol} relative to the anchor; a single
+   * cell reference has the same start and end. Nodes that read no cells add
+   * nothing.
+   *
+   * Parameters:
+   *    refs : The list that the references are added to.
+   */
+  public void collectReferences(List<int[]> refs) {
+  }
+
+  // returns the references of the whole tree, relative to the anchor
+  public int[][] getReferences() {
+    int[][] refs = references;
+    if (refs == null) {
+      ArrayList<int[]> list = new ArrayList<int[]>();
+      collectReferences(list);
+      refs = list.toArray(new int[0][]);
+      references = refs;
+    }
+    return refs;
+  }
+
+  // writes the shape of this node: its operators, constants and
+  // references, fully parenthesized. The references are written relative
+  // to baseRow, baseCol, which are themselves offsets from the anchor.
+  abstract void appendShape(StringBuilder out, int baseRow, int baseCol);
+
+  // builds an operator node, or folds it into a constant when both operands
+  // are constants. A result that is an error is left to be calculated, so
+  // that the error is not written into a snapshot as a number.
+  static Formula newOperator(char operator, Formula left, Formula right) {
+    if (left instanceof Constant && right instanceof Constant) {
+      double value = operate(((Constant) left).value, ((Constant) right).value, operator);
+      if (!ErrorValue.isError(value)) {
+        return new Constant(value);
+      }
+    }
+    return new Operator(operator, left, right);
+  }
+
+  // builds a log or sqrt node, or folds it into a constant like newOperator()
+  static Formula newFunction(boolean log, Formula argument) {
+    if (argument instanceof Constant) {
+      double value = function(((Constant) argument).value, log);
+      if (!ErrorValue.isError(value)) {
+        return new Constant(value);
+      }
+    }
+    return new Function(log, argument);
+  }
+
+  // the opcodes of the postfix form written by save()
+  static final byte CONSTANT = 1;
+  static final byte CELL = 2;
+  static final byte OPERATOR = 3;
+  static final byte FUNCTION = 4;
+  static final byte RANGE = 5;
+
+  // returns the number of nodes in this tree
+  abstract int size();
+
+  // writes the nodes of this tree in postfix order (children before
+  // parents), with the references made absolute from the anchor row, col
+  abstract void writeNodes(DataOutput out, int row, int col) throws IOException;
+
+  /*
+   * Writes this formula in an already parsed, binary form, so that it can be
+   * loaded again without tokenizing or parsing the expression. References
+   * are written as absolute cells.
+   *
+   * Parameters:
+   *    out      : Where the formula is written.
+   *    row, col : The anchor of the cell that holds the formula.
+   */
+  public void save(DataOutput out, int row, int col) throws IOException {
+    out.writeInt(size());
+    writeNodes(out, row, col);
+  }
+
+  /*
+   * Reads a formula written by save() and shares it through the plan cache.
+   *
+   * Parameters:
+   *    in       : The buffer, positioned at the start of the formula.
+   *    row, col : The anchor of the cell the formula is loaded into.
+   * Returns:
+   *    The formula tree, or null if the data is not a valid formula.
+   */
+  public static Formula load(ByteBuffer in, int row, int col) {
+    int count = in.getInt();
+    ArrayDeque<Formula> stack = new ArrayDeque<Formula>();
+    for (int node = 0; node < count; node++) {
+      byte opcode = in.get();
+      switch (opcode) {
+        case CONSTANT:
+          stack.push(new Constant(in.getDouble()));
+          break;
+        case CELL: {
+          int refRow = in.getInt();
+          int refCol = in.getInt();
+          stack.push(new CellRef(refRow - row, refCol - col));
+          break;
+        }
+        case OPERATOR: {
+          char operator = in.getChar();
+          if (stack.size() < 2) {
+            return null;
+          }
+          Formula right = stack.pop();
+          Formula left = stack.pop();
+          stack.push(newOperator(operator, left, right));
+          break;
+        }
+        case FUNCTION:
+          if (stack.isEmpty()) {
+            return null;
+          }
+          stack.push(newFunction(in.get() != 0, stack.pop()));
+          break;
+        case RANGE: {
+          byte kind = in.get();
+          if (kind < Range.SUM || kind > Range.NTH) {
+            return null;
+          }
+          int startRow = in.getInt() - row;
+          int startCol = in.getInt() - col;
+          int endRow = in.getInt() - row;
+          int endCol = in.getInt() - col;
+          int k = Range.hasK(kind) ? in.getInt() : 0;
+          stack.push(new Range(kind, k, startRow, startCol, endRow, endCol));
+          break;
+        }
+        default:
+          return null;
+      }
+    }
+    if (stack.size() != 1) {
+      return null;
+    }
+    Formula formula = stack.pop();
+    if (formula.getReferences().length == 0) {
+      return formula;
+    }
+    return intern(formula);
+  }
+
+  /*
+   * Compiles an expression into a formula tree. The tokens are read once
+   * with an ExpressionLexer to write the relative form of the expression,
+   * where every cell name becomes its offset from the anchor, like R[-1]C[0].
+   * If a cell with the same relative form was compiled before, its tree is
+   * returned without parsing anything; otherwise the expression is parsed
+   * and the tree is added to the plan cache. Expressions that read no cells
+   * are parsed every time, since they would only fill the cache with one
+   * entry per number.
+   *
+   * Parameters:
+   *    expression : The expression, such as ( a1 * 2 + 1 ).
+   *    row, col   : The anchor, the location of the cell that holds it.
+   * Returns:
+   *    The root of the formula tree, or null if the expression is not well
+   *    formed or divides by a literal 0.
+   */
+  public static Formula compile(CharSequence expression, int row, int col) {
+    ExpressionLexer lexer = new ExpressionLexer(expression);
+    StringBuilder shape = new StringBuilder(expression.length() + 16);
+    boolean readsCells = false;
+    boolean afterDivide = false;
+    int type;
+    while ((type = lexer.next()) != ExpressionLexer.END) {
+      if (type == ExpressionLexer.ERROR || (afterDivide && lexer.tokenEquals("0"))) {
+        return null;
+      }
+      afterDivide = type == ExpressionLexer.OPERATOR && lexer.operator() == '/';
+      if (type == ExpressionLexer.CELL) {
+        long address = CellAddress.parse(expression, lexer.start(), lexer.end());
+        shape.append("R[").append(CellAddress.row(address) - row)
+            .append("]C[").append(CellAddress.col(address) - col).append(']');
+        readsCells = true;
+      } else {
+        shape.append(expression, lexer.start(), lexer.end());
+      }
+      shape.append(' ');
+    }
+    if (!readsCells) {
+      return parse(expression, row, col);
+    }
+
+    String key = shape.toString();
+    Formula plan = plans.get(key);
+    if (plan == null) {
+      plan = parse(expression, row, col);
+      if (plan == null) {
+        return null;
+      }
+      plan = intern(plan);
+      plans.putIfAbsent(key, plan);
+    }
+    return plan;
+  }
+
+  /*
+   * Rewrites the expression of a formula whose cell moves rowShift rows
+   * when the rows of a rectangle are sorted. A reference that lies wholly
+   * inside the rectangle (a cell, or a range with both corners inside)
+   * moves with the formula, so a formula keeps reading its own row; a
+   * reference that reaches outside the rectangle, or that would move off
+   * the sheet, keeps the cells it reads.
+   *
+   * Parameters:
+   *    expression : The expression, which must compile.
+   *    rowShift   : How many rows the cell moves down (up when negative).
+   *    top, left, bottom, right : The sorted rectangle.
+   *    rows       : The number of rows of the sheet.
+   * Returns:
+   *    The rewritten expression, or null if no reference moves.
+   */
+  static String moveReferences(CharSequence expression, int rowShift, int top, int left,
+      int bottom, int right, int rows) {
+    ExpressionLexer lexer = new ExpressionLexer(expression);
+    StringBuilder out = new StringBuilder(expression.length() + 8);
+    int copied = 0;
+    boolean moved = false;
+    boolean inRange = false;
+    int type;
+    while ((type = lexer.next()) != ExpressionLexer.END) {
+      if (type == ExpressionLexer.FUNCTION) {
+        inRange = Parser.rangeKind(lexer.function()) >= 0;
+        continue;
+      }
+      if (type != ExpressionLexer.CELL) {
+        continue;
+      }
+      // a range is two cells with a '-' between them, moved together
+      int firstStart = lexer.start();
+      int firstEnd = lexer.end();
+      long first = CellAddress.parse(expression, firstStart, firstEnd);
+      int lastStart = firstStart;
+      int lastEnd = firstEnd;
+      long last = first;
+      if (inRange) {
+        lexer.next();
+        lexer.next();
+        lastStart = lexer.start();
+        lastEnd = lexer.end();
+        last = CellAddress.parse(expression, lastStart, lastEnd);
+        inRange = false;
+      }
+      int firstRow = CellAddress.row(first);
+      int lastRow = CellAddress.row(last);
+      if (firstRow < top || lastRow > bottom || CellAddress.col(first) < left || CellAddress.col(last) > right
+          || firstRow + rowShift < 0 || lastRow + rowShift >= rows) {
+        continue;
+      }
+      out.append(expression, copied, firstStart);
+      appendCell(out, expression, firstStart, firstRow + rowShift, CellAddress.col(first));
+      if (lastStart != firstStart) {
+        out.append(expression, firstEnd, lastStart);
+        appendCell(out, expression, lastStart, lastRow + rowShift, CellAddress.col(last));
+      }
+      copied = lastEnd;
+      moved = true;
+    }
+    if (!moved) {
+      return null;
+    }
+    out.append(expression, copied, expression.length());
+    return out.toString();
+  }
+
+  // writes the name of the cell at row, col in the case of the cell name
+  // that starts at start in the expression
+  private static void appendCell(StringBuilder out, CharSequence expression, int start, int row, int col) {
+    String name = CellAddress.format(row, col);
+    out.append(Character.isLowerCase(expression.charAt(start)) ? name.toLowerCase() : name);
+  }
+
+  // parses an expression into a new tree, or returns null if it is not
+  // well formed
+  private static Formula parse(CharSequence expression, int row, int col) {
+    ExpressionLexer lexer = new ExpressionLexer(expression);
+    if (lexer.next() == ExpressionLexer.END) {
+      return null;
+    }
+    Formula formula = new Parser(lexer, row, col).parseSum();
+    if (formula == null || lexer.type() != ExpressionLexer.END) {
+      return null;
+    }
+    return formula;
+  }
+
+  // returns the cached tree with the same shape as formula, adding formula
+  // to the cache if there is none yet
+  private static Formula intern(Formula formula) {
+    StringBuilder shape = new StringBuilder("=");
+    formula.appendShape(shape, 0, 0);
+    Formula plan = plans.putIfAbsent(shape.toString(), formula);
+    return plan == null ? formula : plan;
+  }
+
+  // returns the number of shapes in the plan cache. Every shape is kept
+  // under the key written by intern(), which starts with '='.
+  public static int planCount() {
+    int count = 0;
+    for (String key : plans.keySet()) {
+      if (key.charAt(0) == '=') {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // empties the plan cache; cells keep the trees they already have
+  public static void clearPlans() {
+    plans.clear();
+  }
+
+  // a number that was typed directly into the expression
+  static final class Constant extends Formula {
+    private final double value;
+
+    Constant(double value) {
+      this.value = value;
+    }
+
+    public double evaluate(int row, int col) {
+      return value;
+    }
+
+    // a number is never worth compiling
+    public double run(int row, int col) {
+      return value;
+    }
+
+    void emit(FormulaCompiler.Code code) throws IOException {
+      code.constant(value);
+    }
+
+    void appendShape(StringBuilder out, int baseRow, int baseCol) {
+      out.append(value);
+    }
+
+    int size() {
+      return 1;
+    }
+
+    void writeNodes(DataOutput out, int row, int col) throws IOException {
+      out.writeByte(CONSTANT);
+      out.writeDouble(value);
+    }
+  }
+
+  // a reference to another cell, such as a1 or b12, resolved to its
+  // offset from the anchor when the formula is compiled
+  static final class CellRef extends Formula {
+    private final int rowOffset;
+    private final int colOffset;
+
+    CellRef(int rowOffset, int colOffset) {
+      this.rowOffset = rowOffset;
+      this.colOffset = colOffset;
+    }
+
+    public void collectReferences(List<int[]> refs) {
+      refs.add(new int[] { rowOffset, colOffset, rowOffset, colOffset });
+    }
+
+    void appendShape(StringBuilder out, int baseRow, int baseCol) {
+      out.append("R[").append(rowOffset - baseRow).append("]C[").append(colOffset - baseCol).append(']');
+    }
+
+    int size() {
+      return 1;
+    }
+
+    void writeNodes(DataOutput out, int row, int col) throws IOException {
+      out.writeByte(CELL);
+      out.writeInt(row + rowOffset);
+      out.writeInt(col + colOffset);
+    }
+
+    // asks the Grid for the value of the referenced cell, which is #REF!
+    // when the cell is outside the grid
+    public double evaluate(int row, int col) {
+      return GridBase.grid.getCellValue(row + rowOffset, col + colOffset);
+    }
+
+    void emit(FormulaCompiler.Code code) throws IOException {
+      code.cell(rowOffset, colOffset);
+    }
+  }
+
+  /*
+   * A node whose result may be kept in the SubexpressionCache while a
+   * recalculation pass runs. Only the expensive nodes (log, sqrt and ^) are
+   * numbered for the cache; the number identifies the node's shape relative
+   * to the first cell it reads, so the same subexpression gets the same key
+   * in every formula that contains it, wherever that formula is.
+   */
+  abstract static class Memoized extends Formula {
+    // the number of the shape, or 0 if the node is not cached, and the
+    // offset of the first cell it reads from the anchor
+    private int shape = 0;
+    private int firstRow;
+    private int firstCol;
+
+    // numbers the node for the cache; called by the constructors of the
+    // nodes that are worth caching. A node that reads no cells is folded
+    // into a constant instead.
+    void number() {
+      int[][] refs = getReferences();
+      if (refs.length == 0) {
+        return;
+      }
+      firstRow = refs[0][0];
+      firstCol = refs[0][1];
+      StringBuilder text = new StringBuilder();
+      appendShape(text, firstRow, firstCol);
+      shape = SubexpressionCache.shapeNumber(text.toString());
+    }
+
+    // calculates the node without looking in the cache
+    abstract double calculate(int row, int col);
+
+    public double evaluate(int row, int col) {
+      if (shape == 0) {
+        return calculate(row, col);
+      }
+      SubexpressionCache cache = SubexpressionCache.current();
+      long key = cache == null ? 0 : SubexpressionCache.key(shape, row + firstRow, col + firstCol);
+      if (key == 0) {
+        return calculate(row, col);
+      }
+      int slot = cache.find(key);
+      if (cache.found(slot)) {
+        return cache.value(slot);
+      }
+      long changes = cache.getChanges();
+      double value = calculate(row, col);
+      // calculating may have added other results, so look for the slot
+      // again; the result is not kept if a cell changed in the meantime
+      if (cache.isCurrent(changes)) {
+        cache.put(cache.find(key), key, value);
+      }
+      return value;
+    }
+  }
+
+  // one of the binary operators: ^ * / + -
+  static final class Operator extends Memoized {
+    private final char operator;
+    private final Formula left;
+    private final Formula right;
+
+    Operator(char operator, Formula left, Formula right) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+      if (operator == '^') {
+        number();
+      }
+    }
+
+    public void collectReferences(List<int[]> refs) {
+      left.collectReferences(refs);
+      right.collectReferences(refs);
+    }
+
+    void appendShape(StringBuilder out, int baseRow, int baseCol) {
+      out.append('(');
+      left.appendShape(out, baseRow, baseCol);
+      out.append(operator);
+      right.appendShape(out, baseRow, baseCol);
+      out.append(')');
+    }
+
+    int size() {
+      return left.size() + right.size() + 1;
+    }
+
+    void writeNodes(DataOutput out, int row, int col) throws IOException {
+      left.writeNodes(out, row, col);
+      right.writeNodes(out, row, col);
+      out.writeByte(OPERATOR);
+      out.writeChar(operator);
+    }
+
+    // an error in the left operand is passed on without evaluating the
+    // right one (see operate())
+    double calculate(int row, int col) {
+      double one = left.evaluate(row, col);
+      if (ErrorValue.isError(one)) {
+        return one;
+      }
+      return operate(one, right.evaluate(row, col), operator);
+    }
+
+    void emit(FormulaCompiler.Code code) throws IOException {
+      left.emit(code);
+      right.emit(code);
+      code.operator(operator);
+    }
+  }
+
+  // one of the single argument functions: log or sqrt
+  static final class Function extends Memoized {
+    private final boolean log;
+    private final Formula argument;
+
+    Function(boolean log, Formula argument) {
+      this.log = log;
+      this.argument = argument;
+      number();
+    }
+
+    public void collectReferences(List<int[]> refs) {
+      argument.collectReferences(refs);
+    }
+
+    void appendShape(StringBuilder out, int baseRow, int baseCol) {
+      out.append(log ? "(log " : "(sqrt ");
+      argument.appendShape(out, baseRow, baseCol);
+      out.append(')');
+    }
+
+    int size() {
+      return argument.size() + 1;
+    }
+
+    void writeNodes(DataOutput out, int row, int col) throws IOException {
+      argument.writeNodes(out, row, col);
+      out.writeByte(FUNCTION);
+      out.writeByte(log ? 1 : 0);
+    }
+
+    // see function()
+    double calculate(int row, int col) {
+      return function(argument.evaluate(row, col), log);
+    }
+
+    void emit(FormulaCompiler.Code code) throws IOException {
+      argument.emit(code);
+      code.function(log);
+    }
+  }
+
+  // one of the range functions: sum, avg, min, max, count, topk, bottomk,
+  // median or nth over a rectangle of cells, with its corners relative to
+  // the anchor
+  static final class Range extends Formula {
+    // the kinds of range function, as written by save()
+    static final byte SUM = 0;
+    static final byte AVG = 1;
+    static final byte MIN = 2;
+    static final byte MAX = 3;
+    static final byte COUNT = 4;
+    static final byte TOPK = 5;
+    static final byte BOTTOMK = 6;
+    static final byte MEDIAN = 7;
+    static final byte NTH = 8;
+
+    private final byte kind;
+    // the k of topk, bottomk and nth; 0 for the other kinds
+    private final int k;
+    private final int startRow;
+    private final int startCol;
+    private final int endRow;
+    private final int endCol;
+
+    Range(byte kind, int k, int startRow, int startCol, int endRow, int endCol) {
+      this.kind = kind;
+      this.k = k;
+      this.startRow = startRow;
+      this.startCol = startCol;
+      this.endRow = endRow;
+      this.endCol = endCol;
+    }
+
+    public void collectReferences(List<int[]> refs) {
+      refs.add(new int[] { startRow, startCol, endRow, endCol });
+    }
+
+    // returns true if the kind of range function takes a k before the range
+    static boolean hasK(byte kind) {
+      return kind == TOPK || kind == BOTTOMK || kind == NTH;
+    }
+
+    void appendShape(StringBuilder out, int baseRow, int baseCol) {
+      out.append('(').append(kind).append(' ').append(k).append(" R[").append(startRow - baseRow).append("]C[")
+          .append(startCol - baseCol).append("]:R[").append(endRow - baseRow).append("]C[")
+          .append(endCol - baseCol).append("])");
+    }
+
+    int size() {
+      return 1;
+    }
+
+    void writeNodes(DataOutput out, int row, int col) throws IOException {
+      out.writeByte(RANGE);
+      out.writeByte(kind);
+      out.writeInt(row + startRow);
+      out.writeInt(col + startCol);
+      out.writeInt(row + endRow);
+      out.writeInt(col + endCol);
+      if (hasK(kind)) {
+        out.writeInt(k);
+      }
+    }
+
+    // asks the Grid for the sum, average, minimum, maximum, count, k-th
+    // largest, k-th smallest or median of the range; an error in any cell
+    // of the range is passed on. topk k is the k-th largest value, and
+    // bottomk k and nth k are both the k-th smallest.
+    public double evaluate(int row, int col) {
+      int top = row + startRow;
+      int left = col + startCol;
+      int bottom = row + endRow;
+      int right = col + endCol;
+      switch (kind) {
+        case AVG:
+          return GridBase.grid.getRangeAvg(top, left, bottom, right);
+        case MIN:
+          return GridBase.grid.getRangeMin(top, left, bottom, right);
+        case MAX:
+          return GridBase.grid.getRangeMax(top, left, bottom, right);
+        case COUNT:
+          return GridBase.grid.getRangeCount(top, left, bottom, right);
+        case TOPK:
+          return GridBase.grid.getRangeLargest(top, left, bottom, right, k);
+        case BOTTOMK:
+        case NTH:
+          return GridBase.grid.getRangeSmallest(top, left, bottom, right, k);
+        case MEDIAN:
+          return GridBase.grid.getRangeMedian(top, left, bottom, right);
+        default:
+          return GridBase.grid.getRangeSum(top, left, bottom, right);
+      }
+    }
+
+    void emit(FormulaCompiler.Code code) throws IOException {
+      code.range(kind, k, startRow, startCol, endRow, endCol);
+    }
+  }
+
+  /*
+   * A recursive descent parser over the tokens of an expression. The lexer
+   * is always positioned on the next token that has not been used yet. Each
+   * parse method returns null when the tokens are malformed.
+   */
+  private static final class Parser {
+    private final ExpressionLexer lexer;
+
+    // the anchor that cell references are made relative to
+    private final int anchorRow;
+    private final int anchorCol;
+
+    Parser(ExpressionLexer lexer, int anchorRow, int anchorCol) {
+      this.lexer = lexer;
+      this.anchorRow = anchorRow;
+      this.anchorCol = anchorCol;
+    }
+
+    // returns true if the current token is the operator ch
+    private boolean atOperator(char ch) {
+      return lexer.type() == ExpressionLexer.OPERATOR && lexer.operator() == ch;
+    }
+
+    // sum := product (('+' | '-') product)*
+    private Formula parseSum() {
+      Formula left = parseProduct();
+      while (left != null && (atOperator('+') || atOperator('-'))) {
+        char operator = lexer.operator();
+        lexer.next();
+        Formula right = parseProduct();
+        if (right == null) {
+          return null;
+        }
+        left = newOperator(operator, left, right);
+      }
+      return left;
+    }
+
+    // product := power (('*' | '/') power)*
+    private Formula parseProduct() {
+      Formula left = parsePower();
+      while (left != null && (atOperator('*') || atOperator('/'))) {
+        char operator = lexer.operator();
+        lexer.next();
+        Formula right = parsePower();
+        if (right == null) {
+          return null;
+        }
+        left = newOperator(operator, left, right);
+      }
+      return left;
+    }
+
+    // power := unary ('^' unary)*
+    private Formula parsePower() {
+      Formula left = parseUnary();
+      while (left != null && atOperator('^')) {
+        lexer.next();
+        Formula right = parseUnary();
+        if (right == null) {
+          return null;
+        }
+        left = newOperator('^', left, right);
+      }
+      return left;
+    }
+
+    // unary := ('log' | 'sqrt') unary | primary
+    private Formula parseUnary() {
+      if (lexer.type() == ExpressionLexer.FUNCTION
+          && (lexer.function() == ExpressionLexer.LOG || lexer.function() == ExpressionLexer.SQRT)) {
+        boolean log = lexer.function() == ExpressionLexer.LOG;
+        lexer.next();
+        Formula argument = parseUnary();
+        if (argument == null) {
+          return null;
+        }
+        return newFunction(log, argument);
+      }
+      return parsePrimary();
+    }
+
+    // primary := number | cell | '(' sum ')'
+    //          | ('sum' | 'avg' | 'min' | 'max' | 'count') cell '-' cell
+    private Formula parsePrimary() {
+      switch (lexer.type()) {
+        case ExpressionLexer.OPEN: {
+          lexer.next();
+          Formula inner = parseSum();
+          if (inner == null || lexer.type() != ExpressionLexer.CLOSE) {
+            return null;
+          }
+          lexer.next();
+          return inner;
+        }
+        case ExpressionLexer.FUNCTION:
+          byte kind = rangeKind(lexer.function());
+          if (kind < 0) {
+            return null;
+          }
+          lexer.next();
+          return parseRange(kind);
+        case ExpressionLexer.CELL: {
+          Formula ref = new CellRef(getRow(), getCol());
+          lexer.next();
+          return ref;
+        }
+        case ExpressionLexer.NUMBER: {
+          double value = lexer.numberValue();
+          if (Double.isNaN(value)) {
+            return null;
+          }
+          lexer.next();
+          return new Constant(value);
+        }
+        default:
+          return null;
+      }
+    }
+
+    // returns the kind of range function for a lexer function code, or -1
+    // if the function does not take a range
+    static byte rangeKind(int function) {
+      switch (function) {
+        case ExpressionLexer.SUM:
+          return Range.SUM;
+        case ExpressionLexer.AVG:
+          return Range.AVG;
+        case ExpressionLexer.MIN:
+          return Range.MIN;
+        case ExpressionLexer.MAX:
+          return Range.MAX;
+        case ExpressionLexer.COUNT:
+          return Range.COUNT;
+        case ExpressionLexer.TOPK:
+          return Range.TOPK;
+        case ExpressionLexer.BOTTOMK:
+          return Range.BOTTOMK;
+        case ExpressionLexer.MEDIAN:
+          return Range.MEDIAN;
+        case ExpressionLexer.NTH:
+          return Range.NTH;
+        default:
+          return -1;
+      }
+    }
+
+    // parses the "a1 - b3" part of a range function, after the k (a
+    // whole number of at least 1) of topk, bottomk and nth
+    private Formula parseRange(byte kind) {
+      int k = 0;
+      if (Range.hasK(kind)) {
+        if (lexer.type() != ExpressionLexer.NUMBER) {
+          return null;
+        }
+        double value = lexer.numberValue();
+        if (!(value >= 1 && value <= Integer.MAX_VALUE) || value != Math.floor(value)) {
+          return null;
+        }
+        k = (int) value;
+        lexer.next();
+      }
+      if (lexer.type() != ExpressionLexer.CELL) {
+        return null;
+      }
+      int startRow = getRow();
+      int startCol = getCol();
+      if (lexer.next() != ExpressionLexer.OPERATOR || lexer.operator() != '-'
+          || lexer.next() != ExpressionLexer.CELL) {
+        return null;
+      }
+      int endRow = getRow();
+      int endCol = getCol();
+      lexer.next();
+      return new Range(kind, k, startRow, startCol, endRow, endCol);
+    }
+
+    // gets the column of the current CELL token, relative to the anchor
+    private int getCol() {
+      return CellAddress.col(CellAddress.parse(lexer.expression(), lexer.start(), lexer.end())) - anchorCol;
+    }
+
+    // gets the row of the current CELL token, relative to the anchor
+    private int getRow() {
+      return CellAddress.row(CellAddress.parse(lexer.expression(), lexer.start(), lexer.end())) - anchorRow;
+    }
+  }
+}
@@ -0,0 +1,446 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * The FormulaCompiler is the second tier of formula evaluation. Every
+ * formula starts out interpreted: evaluate() walks its tree, calling a
+ * virtual method per node. Once a formula has been run threshold times (see
+ * Formula.run), it is promoted: the FormulaCompiler writes the bytes of a
+ * small class whose evaluate(row, col) method computes that one formula in
+ * straight-line bytecode, and defines it as a hidden class with
+ * MethodHandles.Lookup.defineHiddenClass. The JIT then sees a single method
+ * with the constants, offsets and operators of the formula written into it,
+ * and can inline the arithmetic.
+ *
+ * Formulas with the same shape share one tree (see Formula.compile), so a
+ * column of ( b1 * c1 ), ( b2 * c2 ), ... is promoted once for all of its
+ * cells.
+ *
+ * The generated code calls the same helpers as the interpreter
+ * (Formula.operate and Formula.function), so both tiers give exactly the
+ * same results, errors included. Because it has no branches, the class
+ * needs no stack map frames.
+ */
+public class FormulaCompiler {
+
+  // the method of a generated class
+  interface Kernel {
+    double evaluate(int row, int col);
+  }
+
+  // the number of times a formula is interpreted before it is compiled,
+  // and whether compiled formulas are used at all
+  private static volatile int threshold = 1000;
+  private static volatile boolean enabled = true;
+
+  // the number of formulas compiled, and of formulas that could not be
+  private static final AtomicInteger promoted = new AtomicInteger();
+  private static final AtomicInteger failed = new AtomicInteger();
+
+  // the name that generated classes are defined under; the JVM adds a
+  // suffix to make each hidden class unique
+  private static final String CLASS_NAME = "FormulaKernel";
+
+  // returns true if formulas are promoted and their compiled form is used
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  // turns the compiled tier on or off. While it is off every formula is
+  // interpreted, including the ones that were already compiled.
+  public static void setEnabled(boolean on) {
+    enabled = on;
+  }
+
+  public static int getThreshold() {
+    return threshold;
+  }
+
+  public static void setThreshold(int calls) {
+    threshold = Math.max(calls, 1);
+  }
+
+  // returns the number of formulas that have been compiled
+  public static int getPromoted() {
+    return promoted.get();
+  }
+
+  // returns the number of formulas that could not be compiled
+  public static int getFailed() {
+    return failed.get();
+  }
+
+  /*
+   * Compiles a formula tree into a hidden class.
+   *
+   * Returns:
+   *    An instance of the class, or null if the formula could not be
+   *    compiled (it then stays interpreted).
+   */
+  static Kernel compile(Formula formula) {
+    try {
+      byte[] bytes = new ClassWriter().write(formula);
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+      Kernel kernel = (Kernel) lookup.lookupClass().getDeclaredConstructor().newInstance();
+      promoted.incrementAndGet();
+      return kernel;
+    } catch (IOException | ReflectiveOperationException | LinkageError | IllegalArgumentException e) {
+      failed.incrementAndGet();
+      return null;
+    }
+  }
+
+  /*
+   * The evaluate method being generated. The nodes of a formula call these
+   * methods in postfix order (children before parents, like
+   * Formula.writeNodes), and each leaves its double value on the operand
+   * stack. The depth of the stack is tracked to fill in max_stack.
+   */
+  static final class Code {
+    private final ClassWriter pool;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    private Code(ClassWriter pool) {
+      this.pool = pool;
+    }
+
+    // a number typed into the expression
+    void constant(double value) throws IOException {
+      if (Double.doubleToRawLongBits(value) == 0) {
+        op(DCONST_0);
+      } else if (value == 1.0) {
+        op(DCONST_1);
+      } else {
+        op(LDC2_W);
+        u2(pool.doubleConstant(value));
+      }
+      push(2);
+    }
+
+    // GridBase.grid.getCellValue(row + rowOffset, col + colOffset)
+    void cell(int rowOffset, int colOffset) throws IOException {
+      grid();
+      offset(ILOAD_1, rowOffset);
+      offset(ILOAD_2, colOffset);
+      op(INVOKEVIRTUAL);
+      u2(pool.methodRef("GridBase", "getCellValue", "(II)D"));
+      pop(3);
+      push(2);
+    }
+
+    // one of the range functions, with its corners relative to the anchor;
+    // k is passed after the corners to topk, bottomk and nth
+    void range(byte kind, int k, int startRow, int startCol, int endRow, int endCol) throws IOException {
+      grid();
+      offset(ILOAD_1, startRow);
+      offset(ILOAD_2, startCol);
+      offset(ILOAD_1, endRow);
+      offset(ILOAD_2, endCol);
+      if (Formula.Range.hasK(kind)) {
+        pushInt(k);
+        op(INVOKEVIRTUAL);
+        pop(6);
+      } else {
+        op(INVOKEVIRTUAL);
+        pop(5);
+      }
+      switch (kind) {
+        case Formula.Range.AVG:
+          u2(pool.methodRef("GridBase", "getRangeAvg", "(IIII)D"));
+          break;
+        case Formula.Range.MIN:
+          u2(pool.methodRef("GridBase", "getRangeMin", "(IIII)D"));
+          break;
+        case Formula.Range.MAX:
+          u2(pool.methodRef("GridBase", "getRangeMax", "(IIII)D"));
+          break;
+        case Formula.Range.COUNT:
+          u2(pool.methodRef("GridBase", "getRangeCount", "(IIII)I"));
+          op(I2D);
+          break;
+        case Formula.Range.TOPK:
+          u2(pool.methodRef("GridBase", "getRangeLargest", "(IIIII)D"));
+          break;
+        case Formula.Range.BOTTOMK:
+        case Formula.Range.NTH:
+          u2(pool.methodRef("GridBase", "getRangeSmallest", "(IIIII)D"));
+          break;
+        case Formula.Range.MEDIAN:
+          u2(pool.methodRef("GridBase", "getRangeMedian", "(IIII)D"));
+          break;
+        default:
+          u2(pool.methodRef("GridBase", "getRangeSum", "(IIII)D"));
+      }
+      push(2);
+    }
+
+    // Formula.operate(left, right, operator), with both operands on the stack
+    void operator(char operator) throws IOException {
+      pushInt(operator);
+      op(INVOKESTATIC);
+      u2(pool.methodRef("Formula", "operate", "(DDC)D"));
+      pop(5);
+      push(2);
+    }
+
+    // Formula.function(argument, log), with the argument on the stack
+    void function(boolean log) throws IOException {
+      pushInt(log ? 1 : 0);
+      op(INVOKESTATIC);
+      u2(pool.methodRef("Formula", "function", "(DZ)D"));
+      pop(3);
+      push(2);
+    }
+
+    // pushes GridBase.grid
+    private void grid() throws IOException {
+      op(GETSTATIC);
+      u2(pool.fieldRef("GridBase", "grid", "LGridBase;"));
+      push(1);
+    }
+
+    // pushes row (ILOAD_1) or col (ILOAD_2) plus an offset
+    private void offset(int load, int offset) throws IOException {
+      op(load);
+      push(1);
+      if (offset != 0) {
+        pushInt(offset);
+        op(IADD);
+        pop(1);
+      }
+    }
+
+    // pushes an int constant with the shortest instruction
+    private void pushInt(int value) throws IOException {
+      if (value >= -1 && value <= 5) {
+        op(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op(BIPUSH);
+        op(value & 0xff);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op(SIPUSH);
+        u2(value & 0xffff);
+      } else {
+        op(LDC_W);
+        u2(pool.intConstant(value));
+      }
+      push(1);
+    }
+
+    private void op(int code) {
+      bytes.write(code);
+    }
+
+    private void u2(int value) {
+      bytes.write(value >> 8);
+      bytes.write(value);
+    }
+
+    private void push(int slots) {
+      depth += slots;
+      maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void pop(int slots) {
+      depth -= slots;
+    }
+  }
+
+  // the opcodes used by the generated methods
+  private static final int ICONST_0 = 0x03;
+  private static final int DCONST_0 = 0x0e;
+  private static final int DCONST_1 = 0x0f;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int LDC2_W = 0x14;
+  private static final int ILOAD_1 = 0x1b;
+  private static final int ILOAD_2 = 0x1c;
+  private static final int ALOAD_0 = 0x2a;
+  private static final int IADD = 0x60;
+  private static final int I2D = 0x87;
+  private static final int DRETURN = 0xaf;
+  private static final int RETURN = 0xb1;
+  private static final int GETSTATIC = 0xb2;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKESTATIC = 0xb8;
+
+  /*
+   * Writes a class file for one formula:
+   *
+   *     final class FormulaKernel implements FormulaCompiler.Kernel {
+   *       public FormulaKernel() { super(); }
+   *       public double evaluate(int row, int col) { return ...; }
+   *     }
+   *
+   * It also keeps the constant pool, adding each entry the first time it is
+   * asked for.
+   */
+  private static final class ClassWriter {
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    // returns the bytes of the class that evaluates formula
+    byte[] write(Formula formula) throws IOException {
+      Code code = new Code(this);
+      formula.emit(code);
+      code.op(DRETURN);
+      byte[] body = code.bytes.toByteArray();
+      if (body.length > 65535) {
+        throw new IllegalArgumentException("formula is too long to compile");
+      }
+
+      int thisClass = classRef(CLASS_NAME);
+      int superClass = classRef("java/lang/Object");
+      int kernel = classRef("FormulaCompiler$Kernel");
+      int init = methodRef("java/lang/Object", "<init>", "()V");
+      int initName = utf8("<init>");
+      int initType = utf8("()V");
+      int evaluateName = utf8("evaluate");
+      int evaluateType = utf8("(II)D");
+      int codeName = utf8("Code");
+
+      ByteArrayOutputStream file = new ByteArrayOutputStream(64 + poolBytes.size() + body.length);
+      DataOutputStream out = new DataOutputStream(file);
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(52);
+      out.writeShort(poolCount);
+      pool.flush();
+      poolBytes.writeTo(out);
+      out.writeShort(0x0030);    // final, super
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(1);
+      out.writeShort(kernel);
+      out.writeShort(0);         // no fields
+      out.writeShort(2);
+
+      byte[] constructor = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (init >> 8), (byte) init, (byte) RETURN };
+      writeMethod(out, initName, initType, codeName, 1, 1, constructor);
+      writeMethod(out, evaluateName, evaluateType, codeName, code.maxDepth, 3, body);
+      out.writeShort(0);         // no class attributes
+      out.flush();
+      return file.toByteArray();
+    }
+
+    // writes a public method with a Code attribute
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName,
+        int maxStack, int maxLocals, byte[] code) throws IOException {
+      out.writeShort(0x0001);
+      out.writeShort(name);
+      out.writeShort(type);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + code.length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeShort(0);         // no exception table
+      out.writeShort(0);         // no attributes
+    }
+
+    // records a new entry that takes size slots and returns its index
+    private int add(String key, int size) {
+      int index = poolCount;
+      poolCount += size;
+      if (poolCount > 65535) {
+        throw new IllegalArgumentException("formula has too many constants to compile");
+      }
+      entries.put(key, index);
+      return index;
+    }
+
+    int utf8(String text) throws IOException {
+      Integer index = entries.get("U" + text);
+      if (index != null) {
+        return index;
+      }
+      pool.writeByte(1);
+      pool.writeUTF(text);
+      return add("U" + text, 1);
+    }
+
+    int classRef(String name) throws IOException {
+      Integer index = entries.get("C" + name);
+      if (index != null) {
+        return index;
+      }
+      int nameIndex = utf8(name);
+      write(7, nameIndex, -1);
+      return add("C" + name, 1);
+    }
+
+    int fieldRef(String owner, String name, String type) throws IOException {
+      return memberRef(9, owner, name, type);
+    }
+
+    int methodRef(String owner, String name, String type) throws IOException {
+      return memberRef(10, owner, name, type);
+    }
+
+    private int memberRef(int tag, String owner, String name, String type) throws IOException {
+      String key = "M" + tag + owner + "." + name + type;
+      Integer index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      int ownerIndex = classRef(owner);
+      int nameAndType = nameAndType(name, type);
+      write(tag, ownerIndex, nameAndType);
+      return add(key, 1);
+    }
+
+    private int nameAndType(String name, String type) throws IOException {
+      String key = "N" + name + type;
+      Integer index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      int nameIndex = utf8(name);
+      int typeIndex = utf8(type);
+      write(12, nameIndex, typeIndex);
+      return add(key, 1);
+    }
+
+    int intConstant(int value) throws IOException {
+      String key = "I" + value;
+      Integer index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      pool.writeByte(3);
+      pool.writeInt(value);
+      return add(key, 1);
+    }
+
+    int doubleConstant(double value) throws IOException {
+      String key = "D" + Double.doubleToRawLongBits(value);
+      Integer index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      pool.writeByte(6);
+      pool.writeDouble(value);
+      // a double takes two slots of the constant pool
+      return add(key, 2);
+    }
+
+    // writes an entry made of a tag and one or two u2 indexes
+    private void write(int tag, int first, int second) throws IOException {
+      pool.writeByte(tag);
+      pool.writeShort(first);
+      if (second >= 0) {
+        pool.writeShort(second);
+      }
+    }
+  }
+}
@@ -1,5 +1,7 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /*
  * The Grid class will hold all the cells. It allows access to the cells via the
@@ -7,58 +9,446 @@ import java.util.*;
  * many commands that update the cells. These command will include
  * sorting a range of cells and saving the grid contents to a file.
  *
+ * The grid may be used from several threads at once. A writer locks the
+ * region of the grid it changes (see StripedLock), so writers to different
+ * parts of the sheet do not wait for each other; a sort locks every region
+ * of its range, and clear and resize lock the whole grid. Readers take no
+ * lock: the CellStore publishes every change whole, and a formula cell only
+ * keeps a value that was worked out from its inputs as they were at one
+ * moment (see NumberCell); a read that overlaps a change to one of those
+ * inputs is simply tried again. The formulas that read a changed cell are queued,
+ * and whichever writer recalculates next brings them up to date.
+ *
  */
 public class Grid extends GridBase {
 
   // I use these instance fields to keep track of the count of columns, rows and cell width.
   // They are scoped to the instance of this Grid object.
   // They are initialized to the prescribed default values.
-  private int colCount = 7;
-  private int rowCount = 10;
-  private int cellWidth = 9;
+  private volatile int colCount = 7;
+  private volatile int rowCount = 10;
+  private volatile int cellWidth = 9;
+
+  // this instance field holds the cells of the grid; it only uses memory
+  // for the parts of the grid that have been written
+  private CellStore cells;
+
+  // the locks writers take on the regions of the grid they change
+  private final StripedLock locks = new StripedLock(64);
+
+  // every distinct text of the sheet, which the text cells keep codes into
+  private volatile TextDictionary texts = new TextDictionary();
+
+  // keeps track of which formula cells read which other cells, so that
+  // a change only invalidates the cached values of its dependents
+  private DependencyGraph dependencies = new DependencyGraph();
+
+  // the cells whose values are out of date since the last recalculation
+  // (guarded by its own monitor), and the engine that brings them up to date
+  private LinkedHashSet<Long> pendingRecalc = new LinkedHashSet<Long>();
+  private RecalcEngine recalcEngine = new RecalcEngine();
+
+  // true while a bulk load is applying commands without evaluating them,
+  // and the locations it changed (both guarded by the monitor of pendingRecalc)
+  private volatile boolean bulkLoading = false;
+  private ArrayList<Long> bulkChanges = new ArrayList<Long>();
+
+  // an optional index that answers sum and avg over a range without
+  // visiting every cell; null while it is turned off
+  private volatile RangeIndex rangeIndex = null;
+
+  // the kernels that min, max and count (and sum and avg while calc simd
+  // is on) run over the values gathered from a range
+  private volatile RangeKernels kernels = RangeKernels.SCALAR;
+  private volatile boolean simd = false;
+
+  // the buffer each thread gathers the values of a range into
+  private static final ThreadLocal<double[]> gatherBuffer = ThreadLocal.withInitial(() -> new double[64]);
 
-  // this is an instance field that is used when
-  // analyzing inputted cell locations
-  private String alphabet = "ABCDEFGHIJKLMNOQRSTUVWXYZ";  
+  // the version of the latest change (the store keeps the version at
+  // which each cell last changed)
+  private final AtomicLong version = new AtomicLong();
 
-  // this instance field creates a new matrix (or grid)
-  private Cell[][] matrix;
+  // the buffer each thread's print() renders into; it is reused from one
+  // print to the next
+  private static final ThreadLocal<StringBuilder> printBuffer = ThreadLocal.withInitial(StringBuilder::new);
 
-  // this is the Grid constructor that creates a new matrix
+  // this is the Grid constructor that creates a new, empty store of cells
   public Grid() {
-    matrix = new Cell[rowCount][colCount];
+    cells = new CellStore(rowCount, colCount);
   }
 
-  // this is a mutator that sets the cell
+  // this is a mutator that sets the cell (or clears it when cell is null)
+  // it records what the new cell reads in the dependency graph and marks
+  // every formula that depends on this location as dirty
   public void setCell(int row, int col, Cell cell) {
-    matrix[row][col] = cell;
+    // what the cell reads is recorded before the cell can be seen, so a
+    // writer of one of those cells is sure to find it
+    change(row, col, () -> {
+      if (cell instanceof NumberCell) {
+        dependencies.setPrecedents(row, col, ((NumberCell) cell).getReferences());
+      } else {
+        dependencies.removeCell(row, col);
+      }
+    }, () -> cells.set(row, col, cell, version.incrementAndGet()));
+  }
+
+  /*
+   * Changes the location at row, col by running write under the lock of its
+   * region. record, if not null, runs first under the same lock and updates
+   * the dependency graph for the new contents. The formulas that read the
+   * location are held back from keeping new values until the write is done
+   * (see NumberCell.beginChange), so none of them is worked out from some
+   * cells as they were before the change and others after it. Then they
+   * are queued for recalculation, together with the location itself. They
+   * are only held back once the lock is taken, so a reader that waits for
+   * them never waits on a writer that is itself waiting for a lock.
+   *
+   * During a bulk load the location is only recorded, and endBulkLoad()
+   * finds the formulas that read any of the loaded locations in one go.
+   */
+  private void change(int row, int col, Runnable record, Runnable write) {
+    long key = DependencyGraph.key(row, col);
+    boolean bulk;
+    synchronized (pendingRecalc) {
+      bulk = bulkLoading;
+      if (bulk) {
+        bulkChanges.add(key);
+        pendingRecalc.add(key);
+      }
+    }
+    if (bulk) {
+      locks.lock(row, col);
+      try {
+        if (record != null) {
+          record.run();
+        }
+        write.run();
+      } finally {
+        SubexpressionCache.cellsChanged();
+        locks.unlock(row, col);
+      }
+      return;
+    }
+
+    ArrayList<NumberCell> held = new ArrayList<NumberCell>();
+    ArrayList<Long> marked;
+    long additions;
+    locks.lock(row, col);
+    try {
+      if (record != null) {
+        record.run();
+      }
+      additions = dependencies.getAdditions();
+      marked = markDependents(row, col, held);
+      write.run();
+    } finally {
+      SubexpressionCache.cellsChanged();
+      for (NumberCell reader : held) {
+        reader.endChange();
+      }
+      locks.unlock(row, col);
+    }
+    queue(key);
+    // the dependents are walked again if another writer set a formula in
+    // the meantime, since it may have set it to read the location while it
+    // was being changed
+    if (dependencies.getAdditions() != additions) {
+      marked.addAll(markDependents(row, col, null));
+    }
+    queue(marked);
+  }
+
+  /*
+   * Marks the formulas that read the cell at row, col, directly or through
+   * other formulas, as dirty. The walk does not go on through a formula
+   * that was dirty already: the formulas that read it were marked (and
+   * queued) when it became dirty, and none of them can be brought up to
+   * date without bringing it up to date first. So a write to the top of a
+   * long chain of formulas that are waiting to be recalculated anyway only
+   * marks the first of them.
+   *
+   * Parameters:
+   *    row, col : The location that changed.
+   *    held     : If not null, every formula is held back (see
+   *               NumberCell.beginChange) and added to held, instead of
+   *               only being invalidated. A formula that is reached twice
+   *               is held twice.
+   * Returns:
+   *    The keys of the formulas that were up to date, which need to be
+   *    queued; the ones that were dirty already are queued already.
+   */
+  private ArrayList<Long> markDependents(int row, int col, List<NumberCell> held) {
+    return markDependents(push -> dependencies.forEachDirectDependent(row, col, push), held);
   }
 
-  // this is an accessor that returns a single cell
+  // marks the formulas that read any of the cells at keys, directly or
+  // through other formulas, as dirty, like markDependents(row, col, null)
+  // for each of them but walking every formula at most once
+  private ArrayList<Long> markDependents(Collection<Long> keys) {
+    return markDependents(push -> dependencies.forEachDirectDependent(keys, push), null);
+  }
+
+  // marks the formulas that seed gives to the walk, and the formulas that
+  // read them, as dirty (see markDependents(row, col, held))
+  private ArrayList<Long> markDependents(Consumer<LongConsumer> seed, List<NumberCell> held) {
+    ArrayList<Long> marked = new ArrayList<Long>();
+    HashSet<Long> seen = new HashSet<Long>();
+    // the keys still to visit, as a stack of longs
+    long[][] work = { new long[16] };
+    int[] size = { 0 };
+    LongConsumer push = key -> {
+      if (size[0] == work[0].length) {
+        work[0] = Arrays.copyOf(work[0], size[0] * 2);
+      }
+      work[0][size[0]++] = key;
+    };
+    seed.accept(push);
+    while (size[0] > 0) {
+      long key = work[0][--size[0]];
+      int readerRow = DependencyGraph.row(key);
+      int readerCol = DependencyGraph.col(key);
+      Cell cell = cells.get(readerRow, readerCol);
+      boolean wasDirty = false;
+      if (cell instanceof NumberCell) {
+        NumberCell reader = (NumberCell) cell;
+        if (held != null) {
+          wasDirty = reader.beginChange();
+          held.add(reader);
+        } else {
+          wasDirty = reader.invalidate();
+        }
+      }
+      if (!wasDirty && seen.add(key)) {
+        marked.add(key);
+        dependencies.forEachDirectDependent(readerRow, readerCol, push);
+      }
+    }
+    return marked;
+  }
+
+  // queues the cell at key for the next recalculation
+  private void queue(long key) {
+    synchronized (pendingRecalc) {
+      pendingRecalc.add(key);
+    }
+  }
+
+  // queues the cells at keys for the next recalculation
+  private void queue(Collection<Long> keys) {
+    synchronized (pendingRecalc) {
+      pendingRecalc.addAll(keys);
+    }
+  }
+
+  // recalculates every cell queued since the last recalculation, level by
+  // level in dependency order. During a bulk load the cells stay queued
+  // until endBulkLoad(). The queue is taken as a whole, so writers on other
+  // threads can queue cells for the next recalculation while this one runs.
+  private void recalc() {
+    if (bulkLoading) {
+      return;
+    }
+    ArrayList<Long> keys;
+    synchronized (pendingRecalc) {
+      if (pendingRecalc.isEmpty()) {
+        return;
+      }
+      keys = new ArrayList<Long>(pendingRecalc);
+      pendingRecalc.clear();
+    }
+    recalcEngine.recalculate(keys, dependencies, this);
+  }
+
+  // called once the value of the cell at row, col has been recalculated,
+  // so that the range index and the version of the cell pick up the new value
+  public void valueChanged(int row, int col) {
+    locks.lock(row, col);
+    try {
+      cells.touch(row, col, version.incrementAndGet());
+      RangeIndex index = rangeIndex;
+      if (index != null) {
+        index.set(row, col, cells.getValue(row, col));
+      }
+    } finally {
+      locks.unlock(row, col);
+    }
+  }
+
+  // turns the range index on (building it from the current values) or off.
+  // The whole grid is locked while it is built, so no change is missed.
+  private void setRangeIndex(boolean on) {
+    if (!on) {
+      rangeIndex = null;
+      return;
+    }
+    int[] held = locks.lockAll();
+    try {
+      RangeIndex index = new RangeIndex(rowCount, colCount);
+      cells.forEachValue(0, 0, rowCount - 1, colCount - 1,
+          (row, col, value) -> index.set(row, col, value));
+      rangeIndex = index;
+    } finally {
+      locks.unlock(held);
+    }
+  }
+
+  // this is an accessor that returns a single cell, or null if the
+  // location is empty or outside the grid
   public Cell getCell(int row, int col) {
-    return matrix[row][col];
+    return cells.get(row, col);
+  }
+
+  // returns the value of a single cell; empty cells are 0 and cells
+  // outside the grid are #REF!
+  public double getCellValue(int row, int col) {
+    if (!cells.contains(row, col)) {
+      return ErrorValue.REF_ERROR;
+    }
+    return cells.getValue(row, col);
+  }
+
+  // returns the dictionary the text cells of the sheet keep their text in
+  public TextDictionary getTextDictionary() {
+    return texts;
+  }
+
+  // adds the out of date formula cells of a range to dirty
+  public void addDirtyCells(int startRow, int startCol, int endRow, int endCol, List<NumberCell> dirty) {
+    cells.addDirtyCells(startRow, startCol, endRow, endCol, dirty);
+  }
+
+  // accessors for the row count, column count and cell width
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public int getColCount() {
+    return colCount;
+  }
+
+  public int getCellWidth() {
+    return cellWidth;
+  }
+
+  // sets the number of rows and columns of the grid. The cells that fall
+  // outside the new size are removed, and formulas that read them are
+  // recalculated.
+  public void resize(int rows, int cols) {
+    int[] held = locks.lockAll();
+    try {
+      this.rowCount = rows;
+      this.colCount = cols;
+      List<Long> removed = cells.resize(rows, cols);
+      version.incrementAndGet();
+      SubexpressionCache.cellsChanged();
+      for (long key : removed) {
+        dependencies.removeCell(DependencyGraph.row(key), DependencyGraph.col(key));
+        synchronized (pendingRecalc) {
+          pendingRecalc.remove(key);
+        }
+      }
+      for (long key : removed) {
+        queue(markDependents(DependencyGraph.row(key), DependencyGraph.col(key), null));
+      }
+      if (rangeIndex != null) {
+        setRangeIndex(true);
+      }
+    } finally {
+      locks.unlock(held);
+    }
+    recalc();
+  }
+
+  // recalculates every cell changed since the last recalculation
+  public void recalculate() {
+    recalc();
+  }
+
+  // starts a bulk load: from now on commands change cells without
+  // recalculating anything or even marking the formulas that read them.
+  // Until endBulkLoad(), readers on other threads may see formulas that do
+  // not reflect the cells loaded so far.
+  public void beginBulkLoad() {
+    synchronized (pendingRecalc) {
+      bulkLoading = true;
+    }
+  }
+
+  // ends a bulk load: marks the formulas that read any location it changed
+  // in a single walk, then recalculates everything in one pass
+  public void endBulkLoad() {
+    ArrayList<Long> changed;
+    synchronized (pendingRecalc) {
+      bulkLoading = false;
+      changed = bulkChanges;
+      bulkChanges = new ArrayList<Long>();
+    }
+    queue(markDependents(changed));
+    recalc();
+  }
+
+  // runs every command in a text file (see BulkLoader)
+  public String loadCommands(String filename) throws IOException {
+    return BulkLoader.load(this, filename);
+  }
+
+  // replaces the grid with the contents of a binary snapshot file
+  public int loadSnapshot(String filename) throws IOException {
+    return SnapshotFile.load(this, filename);
+  }
+
+  // returns the version of the most recent change to any cell
+  public long getVersion() {
+    return version.get();
+  }
+
+  // returns the strings displayed by every cell in the region, where
+  // empty cells and cells outside the grid display as ""
+  public String[][] getDisplaySnapshot(int startRow, int startCol, int endRow, int endCol) {
+    String[][] snapshot = new String[endRow - startRow + 1][endCol - startCol + 1];
+    for (int row = startRow; row <= endRow; row++) {
+      for (int col = startCol; col <= endCol; col++) {
+        Cell cell = cells.get(row, col);
+        snapshot[row - startRow][col - startCol] = cell == null ? "" : cell.toString();
+      }
+    }
+    return snapshot;
+  }
+
+  // returns {row, col} for every cell in the region that changed after version
+  public List<int[]> getChangedSince(long version, int startRow, int startCol, int endRow, int endCol) {
+    ArrayList<int[]> changed = new ArrayList<int[]>();
+    endRow = Math.min(endRow, rowCount - 1);
+    endCol = Math.min(endCol, colCount - 1);
+    for (int row = Math.max(startRow, 0); row <= endRow; row++) {
+      for (int col = Math.max(startCol, 0); col <= endCol; col++) {
+        if (cells.getVersion(row, col) > version) {
+          changed.add(new int[] { row, col });
+        }
+      }
+    }
+    return changed;
   }
 
    
-  // this method gets the column variable from an inputted cell location
+  // this method gets the column variable from an inputted cell location,
+  // or -1 if it is not a cell inside the grid
   private int getCol(String command) {
-    command = command.trim();
-    String colstr = command.toUpperCase().charAt(0) + "";
-    int col = alphabet.indexOf(colstr);
-    if (col < colCount) {
-      return col;
+    long address = CellAddress.parse(command.trim());
+    if (address != CellAddress.INVALID && CellAddress.col(address) < colCount) {
+      return CellAddress.col(address);
     }
     return -1;
   }
 
-  // this method gets the row number from an inputted cell location 
+  // this method gets the row number from an inputted cell location,
+  // or -1 if it is not a cell inside the grid
   private int getRow(String command) {
-    command = command.trim();
-    String rowstr = command.charAt(1) + "";
-    int row = Integer.parseInt(rowstr) - 1;
-    if (row < rowCount) {
-      return row;
-    }      
+    long address = CellAddress.parse(command.trim());
+    if (address != CellAddress.INVALID && CellAddress.row(address) < rowCount) {
+      return CellAddress.row(address);
+    }
     return -1;
   }
 
@@ -68,12 +458,24 @@ public class Grid extends GridBase {
     * 
     * example of commands are as follows:
     *   print           : render a text based version of the matrix
+    *   print [range]   : render only the window of the matrix in the range. Example: print b2 - d5
     *   width = [value] : set the cell width
     *   width           : get the cell width
     *   rows = [value]  : set the row count
     *   cols = [value]  : set the column count
     *   rows            : get the row count
     *   cols            : get the column count
+    *   calc threads = [value] : set the number of threads used to recalculate
+    *   calc threads    : get the number of threads used to recalculate
+    *   calc index = [on/off] : turn the range index used by sum and avg on or off
+    *   calc index      : get whether the range index is on
+    *   calc simd = [on/off] : turn the vectorized range kernels on or off
+    *   calc simd       : get whether the vectorized range kernels are on
+    *   calc plans      : get the number of formula shapes shared through the plan cache
+    *   calc compile = [on/off] : turn compiling hot formulas into generated classes on or off
+    *   calc compile    : get whether hot formulas are compiled, and how many were
+    *   calc threshold = [value] : set how many times a formula is interpreted before it is compiled
+    *   calc threshold  : get that number
     *   
     *   [cell] = [expression] : set the cell's expression, for checkpoint # expressions may be...
     *          -  a value such as 5. Example:  a2 = 5
@@ -92,9 +494,18 @@ public class Grid extends GridBase {
     *   display [cell]  : get the string for how the cell wants to display itself
     *   clear           : empty out the entire matrix
     *   save [file]     : saves to a file all the commands necessary to regenerate the grid's contents
+    *                     (a file ending in .bin is saved as a binary snapshot instead)
     *   clear [cell]    : empty out a single cell. Example: clear a1
+    *   sum [range]     : the sum of the range. Example: sum a1 - c3 (avg, min, max, count and median work the same way)
+    *   topk [k] [range]    : the k largest values of the range, largest first. Example: topk 20 a1 - a500
+    *   bottomk [k] [range] : the k smallest values of the range, smallest first
+    *   nth [k] [range]     : the k-th smallest value of the range. Example: nth 3 a1 - a9
+    *                     (topk, bottomk, median and nth are also formula functions, where topk k and
+    *                      bottomk k give the k-th largest and k-th smallest value: a1 = ( topk 2 b1 - b9 ))
     *   sorta [range]   : sort the range in ascending order. Example: sorta a1 - a5
     *   sortd [range]   : sort the range in descending order. Example: sortd b1 - e1
+    *   sortrows [range] by [column] [asc or desc], ... : reorder the rows of the range by the
+    *                     values in the columns. Example: sortrows a1 - h50 by c desc, a asc
     *   
     *   Parameters:
     *     command : The command to be processed.
@@ -102,305 +513,277 @@ public class Grid extends GridBase {
     */
 
   public String processCommand(String command) {
-    String result = null;
-
-    // prints using the print method if inputted by the user
-    if (command.startsWith("print")) {
-      return print();
-    }
-
-    String[] tokens = command.split(" ");
-    // if the user manually changes the row, width or cols
-    // the appropriate if statement amongst these three are called
-    // tokens[0] = "rows" or "cols" or "width"
-    // tokens[1] = "="
-    // tokens[2] = ## (in a String)
-    if (tokens.length >=1 && tokens[0].equalsIgnoreCase("rows")) {
-      if (tokens.length == 3 && tokens[1].equals("=")) {
-        int num = Integer.parseInt(tokens[2]);
-        this.rowCount = num;
-        return this.rowCount + "";
+    // the parser works out which command this is in one pass and
+    // the command then calls back into the matching method below
+    return CommandParser.parse(command).execute(this);
+  }
+
+  // if the user manually changes the row, width or cols the matching
+  // property is set; a null value just gets the property
+  String property(String name, String value) {
+    if (value != null) {
+      int num = Integer.parseInt(value);
+      if (name.equals("rows")) {
+        resize(num, colCount);
+      } else if (name.equals("cols")) {
+        resize(rowCount, num);
       } else {
-        return rowCount + ""; 
+        this.cellWidth = num;
       }
-    } else if (tokens.length >=1 && tokens[0].equalsIgnoreCase("cols")) {
-      if (tokens.length == 3 && tokens[1].equals("=")) {
-        int num = Integer.parseInt(tokens[2]);
-        this.colCount = num;
-        return this.colCount + "";
-      } else {
-        return colCount + ""; 
+    }
+    if (name.equals("rows")) {
+      return rowCount + "";
+    } else if (name.equals("cols")) {
+      return colCount + "";
+    }
+    return cellWidth + "";
+  }
+
+  // sets or gets one of the recalculation settings:
+  //   calc threads = ## : the number of threads used to recalculate the grid
+  //   calc index = on/off : the range index used by sum and avg
+  //   calc simd = on/off : the vectorized kernels used by range functions
+  String calc(String setting, String value, String command) {
+    if (setting.equals("threads")) {
+      if (value != null) {
+        recalcEngine.setThreads(Integer.parseInt(value));
       }
-    } else if (tokens.length >=1 && tokens[0].equalsIgnoreCase("width")) {
-      if (tokens.length == 3 && tokens[1].equals("=")) {
-        int num = Integer.parseInt(tokens[2]);
-        this.cellWidth = num;
-        return this.cellWidth + "";
-      } else {
-        return cellWidth + ""; 
-      }
-    }
-
-    // if there is a sum of a range of cells that is assigned thorugh
-    // parentheses to a single cell, this else if statement is used
-    // for example, if a1 = ( sum a2 - a6 ) is entered
-    else if (command.contains("( sum ")) {
-      int destCol = getCol(tokens[0]);
-      int destRow = getRow(tokens[0]);
-      double sum = getRangeSum(tokens[4], tokens[6]);
-      int index = command.indexOf("=");
-      String function = command.substring(index + 2);
-      NumberCell cell = new NumberCell();
-      cell.setFunction(function, matrix);
-      matrix[destRow][destCol] = cell;
-      result = "" + sum;
-    }
-
-    // if there is an average of a range of cells that is assigned thorugh
-    // parentheses to a single cell, this else if statement is used
-    // for example, if a1 = ( avg a2 - a6 ) is entered
-    else if (command.contains("( avg ")) {
-      int destCol = getCol(tokens[0]);
-      int destRow = getRow(tokens[0]);
-      double sum = getRangeAvg(tokens[4], tokens[6]);
-      int index = command.indexOf("=");
-      String function = command.substring(index + 2);
-      NumberCell cell = new NumberCell();
-      cell.setFunction(function, matrix);
-      matrix[destRow][destCol] = cell;
-      result = "" + sum;
-    }
-
-      
-    // used if the user enters a string expression and assigns
-    // that to a cell (like a1 = "hello")
-    else if ((command.indexOf("\"") == command.indexOf("=") + 2) && command.endsWith("\"")) {
-      int col = getCol(command);
-      int row = getRow(command);
-        
-      int index = command.indexOf("=");
-      command = command.substring(index + 2);
-        
-      TextCell cell = new TextCell();
-      cell.setExpression(command);
-      setCell(row, col, cell);
-      return matrix[row][col].getExpression();  
-    } 
-    
-    // if the user assigns a date or an expression to a cell 
-    // (like a1 = 2/2/22 or a1 = ( 3 * 4) ) this code will be implemented
-    else if (tokens.length >= 3 && isValidCellLocation(tokens[0]) && tokens[1].equals("=")) {
-      int col = getCol(tokens[0]);
-      int row = getRow(tokens[0]);
-      
-      // puts the user's inputted number into the matrix
-      String value = command.substring(command.indexOf("=") + 1);
-      Cell cell;
-      if (!value.contains("(") && value.contains("/") ) {
-        // date cell
-        cell = new DateCell();
-      } else {
-        // number cell
-        cell = new NumberCell();
-      }
-
-      // makes sure that every open parentheses has a closing one
-      // to guarentee that all parentheses are in sets
-      int open = 0;
-      for (int index = 0; index < tokens.length; index++) {
-        if (tokens[index].equals("(")) {
-          open++;
-        } else if (tokens[index].equals(")")) {
-          open--;
+      return recalcEngine.getThreads() + "";
+    }
+    if (setting.equals("index")) {
+      if (value != null) {
+        setRangeIndex(value.equalsIgnoreCase("on"));
+      }
+      return rangeIndex != null ? "on" : "off";
+    }
+    if (setting.equals("simd")) {
+      if (value != null) {
+        simd = value.equalsIgnoreCase("on") && RangeKernels.vector() != null;
+        kernels = simd ? RangeKernels.vector() : RangeKernels.SCALAR;
+        if (value.equalsIgnoreCase("on") && !simd) {
+          return "off (start with --add-modules jdk.incubator.vector to use simd)";
         }
       }
-
-      // if the inputted number has too many decimal points, not enough sets
-      // set of parentheses, or undefined value then an error will show
-      if (decimalRepeat(tokens)) {
-        result = "invalid decimal";
-      } else if (open != 0 ) {
-        result = "invalid input";
-      } else if (!cell.setExpression(value)) {
-        result = tokens[0] + " is undefined";
-      } else {
-        matrix[row][col] = cell;
-        result = matrix[row][col] + "";
-      }
-    } 
-
-    // gets the sum of the range of cells that follows the sum statement
-    // for example, if sum a1 - a3 is entered
-    else if (command.startsWith("sum")) {
-      int index = command.indexOf(" ");
-      String piece = command.substring(index + 1);
-      int dashIndex = piece.indexOf("-");
-      String start = piece.substring(0, dashIndex);
-      String end = piece.substring(dashIndex + 1);
-      result = "" + getRangeSum(start, end);
-    }
-
-    // gets the average of the range of cells that follows the avg statement
-    // for example, if sum a1 - a3 is entered
-    else if (command.startsWith("avg")) {
-      int index = command.indexOf(" ");
-      String piece = command.substring(index + 1);
-      int dashIndex = piece.indexOf("-");
-      String start = piece.substring(0, dashIndex);
-      String end = piece.substring(dashIndex + 1);
-      result = "" + getRangeAvg(start, end);
-    }
-      
-    // The value command will show the double value of a cell. 
-    // NumberCells will have a value that matches their display. 
-    // DateCells and TextCells will have a zero value.
-    // Empty cells have a zero value.
-    else if (command.startsWith("value")) {
-      String position = command.substring(5).trim();
-      if (!isValidCellLocation(position)) {
-        return position + " is out of bounds";
-      }
-      int row = getRow(position);
-      int col = getCol(position);
-      if (matrix[row][col] == null) {
-        return 0.0 + "";
-      } else {
-        return matrix[row][col].getValue() + "";
+      return simd ? "on, " + kernels.getName() : "off";
+    }
+    if (setting.equals("compile")) {
+      if (value != null) {
+        FormulaCompiler.setEnabled(value.equalsIgnoreCase("on"));
       }
+      return (FormulaCompiler.isEnabled() ? "on, " : "off, ") + FormulaCompiler.getPromoted()
+          + " formulas promoted, " + FormulaCompiler.getFailed() + " failed";
+    }
+    if (setting.equals("threshold")) {
+      if (value != null) {
+        FormulaCompiler.setThreshold(Integer.parseInt(value));
+      }
+      return FormulaCompiler.getThreshold() + "";
+    }
+    if (setting.equals("plans") && value == null) {
+      return Formula.planCount() + "";
     }
+    return "unknown or malformed command: " + command;
+  }
 
-    // if the user inputs "clear" this will clear the grid
-    else if (command.startsWith("clear")) {
-      // used if the user wants to clear all cells in the grid
-      if (command.equals("clear")) {
-        for(int rows = 0; rows < this.matrix.length; rows++) {
-          for(int cols = 0; cols < this.matrix[0].length; cols++) {
-            this.matrix[rows][cols] = null;
-          }
-        }
-        result = "grid cleared";
-      } 
-      
-      // used if the user wants to clear a specific cell
-      else {
-        int targetRow = getRow(tokens[1]);
-        int targetCol = getCol(tokens[1]);
-        matrix[targetRow][targetCol] = null;
-        result = "cell cleared";
-      }
-    }
-          
-    // used if the user wants to see what is in the cell that they have typed in 
-    else if (command.startsWith("display")) {
-      // if a two letter input that is not a cell location is inputted then it is invalid
-      if (isValidCellLocation(tokens[1])) {
-        int rows = getRow(tokens[1]);
-        int cols = getCol(tokens[1]);
-        return matrix[rows][cols].toString();
-      } else {
-        return "invalid cell location";
-      }
-    } 
-          
-    // if the user wants the value that is in the cell for the 
-    // location they have typed in without typiong in the word "value"
-    // for example if they type in a1 then they should get the value of the cell a1
-    else if (!command.contains("=") && Character.isLetter(command.charAt(0)) && Character.isDigit(command.charAt(1))) {
-      if (isValidCellLocation(tokens[0])) {
-        int rows = getRow(command);
-        int cols = getCol(command);
-        
-        // removes an extra space at the beginning from the value of cell
-        if (!matrix[rows][cols].getExpression().contains("\"")) {
-          return matrix[rows][cols].getExpression().substring(1);
-        }
-        return matrix[rows][cols].getExpression();
-      } else {
-        return "invalid command";
-      }
-    }
-          
-    // if the command starts with expr then it should display the 
-    // expression (in a string format) that was used to set the cell
-    else if (command.startsWith("expr")) {
-      int rows = getRow(tokens[1]);
-      int cols = getCol(tokens[1]);
-      if (rows == -1 || cols == -1) {
-        return "unknown location: " + tokens[1];
-      }
-      return matrix[rows][cols].getExpression();
-    }
-
-    // This will write to a file all the cells’ original expressions
-    // it is in charge of making sure that a file is saved
-    else if (command.startsWith("save")) {
-      String filename = tokens[1];
-      save(filename);
-      result = "File saved successfully";
-    }
-
-    // used if the user wants to sort a series of cells in ascending 
-    // order (from smallest to largest)
-    else if (command.startsWith("sorta")) {
-      int spaceIndex = command.indexOf(" ");
-      int dashIndex = command.indexOf("-");
-      String startCell = command.substring(spaceIndex + 1, dashIndex);
-      String endCell = command.substring(dashIndex + 1);
-      sortA(startCell, endCell);
-      result = "sorted in ascending order";
-    }
-
-    // used if the user wants to sort a series of cells in descending 
-    // order (from largest to smallest)
-    else if (command.startsWith("sortd")) {
-      int spaceIndex = command.indexOf(" ");
-      int dashIndex = command.indexOf("-");
-      String startCell = command.substring(spaceIndex + 1, dashIndex);
-      String endCell = command.substring(dashIndex + 1);
-      sortD(startCell, endCell);
-      result = "sorted in descending order";
-    }
-
-    // if the user enters a malformed command that only has one
-    // quotation mark or single quotation marks, then this method 
-    // will recognize that and provide an error
-    else if (command.contains("\"") || command.contains("'")) {
-      result = "unknown or malformed command: " + command;
-      return result;
+  // sets the expression of a cell. The cell is built from the expression
+  // by the command (see Command.Assign.prepare) and then put in the grid.
+  // While a bulk load is running nothing is evaluated, so "" is returned
+  // instead of the new value.
+  String assign(Command.Assign assignment) {
+    String cellName = assignment.getCell();
+    int row = getRow(cellName);
+    int col = getCol(cellName);
+    if (row < 0 || col < 0) {
+      return assignment.fail(cellName + " is out of bounds");
+    }
+    Cell cell = assignment.prepare();
+    if (cell == null) {
+      return assignment.getError();
+    }
+    setCell(row, col, cell);
+    recalc();
+    if (cell instanceof TextCell) {
+      return cell.getExpression();
     }
-    
-    // if the result is null an error should be returned
-    if (result == null) {
-      result = "unknown or malformed command: " + command;
+    if (bulkLoading) {
+      return "";
     }
-        
-    return result;
+    return cell + "";
   }
 
-  // is called when the user inputs the word sum and returns the 
-  // double value of the sum of the values in the range of
-  // cells inputted by the user
-  private double getRangeSum(String start, String end) {
+  // The value command will show the double value of a cell. 
+  // NumberCells will have a value that matches their display. 
+  // DateCells have their day number as their value (see DateCell).
+  // TextCells will have a zero value.
+  // Empty cells have a zero value.
+  String value(String position) {
+    if (!isValidCellLocation(position)) {
+      return position + " is out of bounds";
+    }
+    int row = getRow(position);
+    int col = getCol(position);
+    if (row < 0 || col < 0) {
+      return 0.0 + "";
+    }
+    return ErrorValue.format(cells.getValue(row, col));
+  }
+
+  // used if the user wants to see how the cell they have typed in displays itself
+  String display(String position) {
+    // if a two letter input that is not a cell location is inputted then it is invalid
+    if (!isValidCellLocation(position) || getRow(position) < 0 || getCol(position) < 0) {
+      return "invalid cell location";
+    }
+    Cell cell = cells.get(getRow(position), getCol(position));
+    if (cell == null) {
+      return "";
+    }
+    return cell.toString();
+  }
+
+  // if the user wants the expression that is in the cell for the 
+  // location they have typed in without typing in the word "expr"
+  // for example if they type in a1 then they should get the expression of the cell a1
+  String showExpression(String position) {
+    if (!isValidCellLocation(position) || getRow(position) < 0 || getCol(position) < 0) {
+      return "invalid command";
+    }
+    Cell cell = cells.get(getRow(position), getCol(position));
+    if (cell == null) {
+      return "";
+    }
+
+    // removes an extra space at the beginning from the value of cell
+    if (!cell.getExpression().contains("\"")) {
+      return cell.getExpression().substring(1);
+    }
+    return cell.getExpression();
+  }
+
+  // if the command starts with expr then it should display the 
+  // expression (in a string format) that was used to set the cell
+  String expr(String position) {
+    if (!isValidCellLocation(position) || getRow(position) < 0 || getCol(position) < 0) {
+      return "unknown location: " + position;
+    }
+    Cell cell = cells.get(getRow(position), getCol(position));
+    if (cell == null) {
+      return "";
+    }
+    return cell.getExpression();
+  }
+
+  // used if the user wants to clear all cells in the grid
+  String clear() {
+    int[] held = locks.lockAll();
+    try {
+      cells.clear(version.incrementAndGet());
+      SubexpressionCache.cellsChanged();
+      dependencies.clear();
+      synchronized (pendingRecalc) {
+        pendingRecalc.clear();
+        bulkChanges.clear();
+      }
+      Formula.clearPlans();
+      texts = new TextDictionary();
+      if (rangeIndex != null) {
+        setRangeIndex(true);
+      }
+    } finally {
+      locks.unlock(held);
+    }
+    return "grid cleared";
+  }
+
+  // used if the user wants to clear a specific cell
+  String clear(String position) {
+    if (!isValidCellLocation(position) || getRow(position) < 0 || getCol(position) < 0) {
+      return position + " is out of bounds";
+    }
+    setCell(getRow(position), getCol(position), null);
+    recalc();
+    return "cell cleared";
+  }
+
+  // gets the sum, average, minimum, maximum, count or median of the range of cells
+  // that follows the function, for example, if sum a1 - a3 is entered
+  String aggregate(int function, String start, String end) {
     start = start.trim();
     end = end.trim();
-
-    // gets the rows and the cols of the first and second inputted cells
     int startRow = getRow(start);
     int startCol = getCol(start);
     int endRow = getRow(end);
     int endCol = getCol(end);
+    switch (function) {
+      case ExpressionLexer.AVG:
+        return ErrorValue.format(getRangeAvg(start, end));
+      case ExpressionLexer.MIN:
+        return ErrorValue.format(getRangeMin(startRow, startCol, endRow, endCol));
+      case ExpressionLexer.MAX:
+        return ErrorValue.format(getRangeMax(startRow, startCol, endRow, endCol));
+      case ExpressionLexer.COUNT:
+        return "" + getRangeCount(startRow, startCol, endRow, endCol);
+      case ExpressionLexer.MEDIAN:
+        return ErrorValue.format(getRangeMedian(startRow, startCol, endRow, endCol));
+      default:
+        return ErrorValue.format(getRangeSum(start, end));
+    }
+  }
 
-    // uses a for loop to go through all the values that are in between 
-    // the two cells in the grid and return the sum of them
-    double sum = 0;
-    for (int row = startRow; row <= endRow; row++) {
-      for (int col = startCol; col <= endCol; col++) {
-        if (matrix[row][col] != null) {
-          sum += matrix[row][col].getValue(); 
-        }
+  /*
+   * Lists the k largest (topk) or k smallest (bottomk) values of the number
+   * cells in a range, or gives the k-th smallest (nth), without moving any
+   * cells.
+   *
+   * Parameters:
+   *    function : ExpressionLexer.TOPK, BOTTOMK or NTH.
+   *    k        : How many values to list, or which value to give.
+   *    start    : The top left cell of the range.
+   *    end      : The bottom right cell of the range.
+   * Returns:
+   *    The values, largest first for topk and smallest first for bottomk,
+   *    separated by commas; or the error in the range.
+   */
+  String rank(int function, int k, String start, String end) {
+    int startRow = getRow(start.trim());
+    int startCol = getCol(start.trim());
+    int endRow = getRow(end.trim());
+    int endCol = getCol(end.trim());
+    if (function == ExpressionLexer.NTH) {
+      return ErrorValue.format(getRangeSmallest(startRow, startCol, endRow, endCol, k));
+    }
+    int count = gatherValues(startRow, startCol, endRow, endCol);
+    if (count < 0) {
+      return ErrorValue.format(rangeResult(Double.NaN, startRow, startCol, endRow, endCol));
+    }
+    double[] values = function == ExpressionLexer.TOPK
+        ? Selection.largest(gatherBuffer.get(), count, k)
+        : Selection.smallest(gatherBuffer.get(), count, k);
+    StringBuilder out = new StringBuilder();
+    for (int index = 0; index < values.length; index++) {
+      if (index > 0) {
+        out.append(", ");
       }
+      out.append(values[index]);
     }
-    return sum;
+    return out.toString();
+  }
+
+  // used if the user wants to sort a series of cells in ascending order
+  // (from smallest to largest) or descending order (from largest to smallest)
+  String sort(boolean descending, String startCell, String endCell) {
+    sortRange(descending, startCell, endCell);
+    recalc();
+    return descending ? "sorted in descending order" : "sorted in ascending order";
+  }
+
+  // is called when the user inputs the word sum and returns the 
+  // double value of the sum of the values in the range of
+  // cells inputted by the user
+  private double getRangeSum(String start, String end) {
+    start = start.trim();
+    end = end.trim();
+    return getRangeSum(getRow(start), getCol(start), getRow(end), getCol(end));
   }
 
   // is called when the user inputs the word avg and returns the 
@@ -409,202 +792,463 @@ public class Grid extends GridBase {
   private double getRangeAvg(String start, String end) {
     start = start.trim();
     end = end.trim();
+    return getRangeAvg(getRow(start), getCol(start), getRow(end), getCol(end));
+  }
 
-    // gets the rows and the cols of the first and second inputted cells
-    int startRow = getRow(start);
-    int startCol = getCol(start);
-    int endRow = getRow(end);
-    int endCol = getCol(end);
-
-    // uses a for loop to go through all the values that are in between 
-    // the two cells in the grid and return the average of them
-    double sum = 0;
-    int num = 0;
-    for (int row = startRow; row <= endRow; row++) {
-      for (int col = startCol; col <= endCol; col++) {
-        if (matrix[row][col] != null) {
-          sum += matrix[row][col].getValue();
-        }
-        num++;
+  // returns the sum of the values in the range of cells, using the
+  // range index or the vectorized kernels when they are turned on
+  public double getRangeSum(int startRow, int startCol, int endRow, int endCol) {
+    // the index gives NaN for a range that holds an error or a value that
+    // is not finite, which it leaves out; such a range is added up from
+    // the cells instead
+    RangeIndex index = rangeIndex;
+    double sum = index != null ? index.sum(startRow, startCol, endRow, endCol) : Double.NaN;
+    if (sum != sum) {
+      if (simd) {
+        int count = gather(startRow, startCol, endRow, endCol);
+        sum = kernels.sum(gatherBuffer.get(), count);
+      } else {
+        // goes through all the values that are in between the two cells
+        // in the grid, skipping the parts that were never written
+        sum = cells.sum(startRow, startCol, endRow, endCol);
       }
     }
+    return rangeResult(sum, startRow, startCol, endRow, endCol);
+  }
+
+  // returns the average of the values in the range of cells, where
+  // empty cells count as zero
+  public double getRangeAvg(int startRow, int startCol, int endRow, int endCol) {
+    int num = (endRow - startRow + 1) * (endCol - startCol + 1);
+    double sum = getRangeSum(startRow, startCol, endRow, endCol);
+    if (ErrorValue.isError(sum)) {
+      return sum;
+    }
     return sum / num;
   }
 
-  // this method will return true if an inputted cell location is valid
+  // returns the smallest value of the number cells in the range
+  public double getRangeMin(int startRow, int startCol, int endRow, int endCol) {
+    int count = gather(startRow, startCol, endRow, endCol);
+    return rangeResult(kernels.min(gatherBuffer.get(), count), startRow, startCol, endRow, endCol);
+  }
+
+  // returns the largest value of the number cells in the range
+  public double getRangeMax(int startRow, int startCol, int endRow, int endCol) {
+    int count = gather(startRow, startCol, endRow, endCol);
+    return rangeResult(kernels.max(gatherBuffer.get(), count), startRow, startCol, endRow, endCol);
+  }
+
+  // returns how many cells in the range hold a number, a formula or a date
+  public int getRangeCount(int startRow, int startCol, int endRow, int endCol) {
+    return gather(startRow, startCol, endRow, endCol);
+  }
+
+  // returns the k-th largest value of the number cells in the range
+  public double getRangeLargest(int startRow, int startCol, int endRow, int endCol, int k) {
+    int count = gatherValues(startRow, startCol, endRow, endCol);
+    if (count < 0 || k < 1 || k > count) {
+      return count < 0 ? rangeResult(Double.NaN, startRow, startCol, endRow, endCol) : ErrorValue.VALUE_ERROR;
+    }
+    return Selection.select(gatherBuffer.get(), count, count - k);
+  }
+
+  // returns the k-th smallest value of the number cells in the range
+  public double getRangeSmallest(int startRow, int startCol, int endRow, int endCol, int k) {
+    int count = gatherValues(startRow, startCol, endRow, endCol);
+    if (count < 0 || k < 1 || k > count) {
+      return count < 0 ? rangeResult(Double.NaN, startRow, startCol, endRow, endCol) : ErrorValue.VALUE_ERROR;
+    }
+    return Selection.select(gatherBuffer.get(), count, k - 1);
+  }
+
+  // returns the median of the number cells in the range
+  public double getRangeMedian(int startRow, int startCol, int endRow, int endCol) {
+    int count = gatherValues(startRow, startCol, endRow, endCol);
+    if (count < 0) {
+      return rangeResult(Double.NaN, startRow, startCol, endRow, endCol);
+    }
+    return Selection.median(gatherBuffer.get(), count);
+  }
+
+  // gathers the values of the range like gather(), but returns -1 when one
+  // of them is an error, since the selection functions cannot order errors
+  private int gatherValues(int startRow, int startCol, int endRow, int endCol) {
+    int count = gather(startRow, startCol, endRow, endCol);
+    double[] values = gatherBuffer.get();
+    for (int index = 0; index < count; index++) {
+      if (values[index] != values[index]) {
+        return -1;
+      }
+    }
+    return count;
+  }
+
+  // checks the result of a range function. The kernels do not look for
+  // errors; an error in the range makes the result NaN, and only then is
+  // the range searched for the error to pass on.
+  private double rangeResult(double result, int startRow, int startCol, int endRow, int endCol) {
+    if (result == result) {
+      return result;
+    }
+    double[] error = { ErrorValue.VALUE_ERROR };
+    boolean[] found = { false };
+    cells.forEachValue(startRow, startCol, endRow, endCol, (row, col, value) -> {
+      if (!found[0] && ErrorValue.isError(value)) {
+        error[0] = value;
+        found[0] = true;
+      }
+    });
+    return error[0];
+  }
+
+  // gathers the values of the number cells in the range into this thread's
+  // buffer (growing it when the range is bigger than any range before) and
+  // returns how many values it holds
+  private int gather(int startRow, int startCol, int endRow, int endCol) {
+    long area = (long) (Math.max(endRow - startRow + 1, 0)) * Math.max(endCol - startCol + 1, 0);
+    double[] values = gatherBuffer.get();
+    if (values.length < area) {
+      values = new double[(int) Math.min(Math.max(area, values.length * 2L), Integer.MAX_VALUE - 8)];
+      gatherBuffer.set(values);
+    }
+    if (area == 0) {
+      return 0;
+    }
+    return cells.gatherNumbers(startRow, startCol, endRow, endCol, values);
+  }
+
+  // this method will return true if an inputted cell location is valid,
+  // from a1 up to xfd1048576
   private boolean isValidCellLocation(String token) {
-    // for an input with one letter and one number (like a1)
-    if (token.length() == 2 && Character.isLetter(token.charAt(0)) && 
-        Character.isDigit(token.charAt(1))) {
-      return true;
-    } 
-    
-    // for an input with one letter and two numbers (like a11)
-    else if (token.length() == 3 && Character.isLetter(token.charAt(0)) && 
-        Character.isDigit(token.charAt(1)) &&
-        Character.isDigit(token.charAt(2))) {
-      return true;
-    }
-    return false;
-  }
-
-  // this method is called when a file needs to be saved
+    return CellAddress.isValid(token);
+  }
+
+  // This will write to a file all the cells' original expressions, or a
+  // binary snapshot of the cells when the file name ends with .bin
   // it uses PrintStream to accept a filename and accapt a file with that name
-  private void save(String filename) {
+  String save(String filename) {
+    if (SnapshotFile.isSnapshot(filename)) {
+      try {
+        SnapshotFile.save(this, filename);
+      } catch (IOException e) {
+        return e.getMessage();
+      }
+      return "File saved successfully";
+    }
     try {
       File file = new File(filename);
       PrintStream print = new PrintStream(file);
       print.println("rows = " + rowCount);
       print.println("cols = " + colCount);
       print.println("width = " + cellWidth);
-      for (int rows = 0; rows < rowCount; rows++) {
-        for (int cols = 0; cols < colCount; cols++) {
-          if (matrix[rows][cols] != null) {
-            print.println(alphabet.charAt(cols) + "" + (rows + 1) + " = " + matrix[rows][cols].getExpression());
-          }
-        }
-      }
+      cells.forEach(0, 0, rowCount - 1, colCount - 1, (rows, cols, cell) ->
+          print.println(CellAddress.format(rows, cols) + " = " + cell.getExpression()));
       print.close(); 
     } catch (Exception e) {
     }
+    return "File saved successfully";
   }
 
-  private void sortA(String startCell, String endCell) {
+  // visits every non-empty location of the grid, row by row, with the
+  // plain numbers given as doubles (see CellStore.forEach)
+  void forEachCell(CellStore.CellVisitor cellVisitor, CellStore.ValueVisitor numberVisitor) {
+    cells.forEach(0, 0, rowCount - 1, colCount - 1, cellVisitor, numberVisitor);
+  }
+
+  // sorts the cells of the range and puts them back row by row. A range
+  // of plain numbers is sorted as doubles; anything else is sorted by keys
+  // read from each cell once (see SortKeys), so formulas are not evaluated
+  // again for every comparison. Cells that compare equal keep their order.
+  // The range is locked while it is read and written back.
+  private void sortRange(boolean descending, String startCell, String endCell) {
     int startRow = getRow(startCell);
     int startCol = getCol(startCell);
     int endRow = getRow(endCell);
     int endCol = getCol(endCell);
-    ArrayList<Cell> list = new ArrayList<Cell>();
-    for (int row = startRow; row <= endRow; row++) {
-      for (int col = startCol; col <= endCol; col++) {
-        list.add(matrix[row][col]);
-      }
+    if (startRow < 0 || startCol < 0 || endRow < startRow || endCol < startCol) {
+      return;
+    }
+    int[] held = locks.lock(startRow, startCol, endRow, endCol);
+    try {
+      sortRange(descending, startRow, startCol, endRow, endCol);
+    } finally {
+      locks.unlock(held);
     }
-    list.sort(null);
-    System.out.println(list);
-    int index = 0;
-    for (int row = startRow; row <= endRow; row++) {
-      for (int col = startCol; col <= endCol; col++) {
-        matrix[row][col] = list.get(index);
-        index++;
-      }
-    } 
   }
 
-  private void sortD(String startCell, String endCell) {
+  // sorts a range that has been checked and locked
+  private void sortRange(boolean descending, int startRow, int startCol, int endRow, int endCol) {
+    double[] numbers = readNumbers(startRow, startCol, endRow, endCol);
+    if (numbers != null) {
+      Arrays.parallelSort(numbers);
+      writeNumbers(startRow, startCol, endRow, endCol, numbers, descending);
+      return;
+    }
+    int width = endCol - startCol + 1;
+    Cell[] range = new Cell[(endRow - startRow + 1) * width];
+    for (int index = 0; index < range.length; index++) {
+      range[index] = cells.get(startRow + index / width, startCol + index % width);
+    }
+    int[] order = SortKeys.sort(SortKeys.rank(range), descending, SortKeys.identity(range.length));
+    for (int index = 0; index < range.length; index++) {
+      setCell(startRow + index / width, startCol + index % width, range[order[index]]);
+    }
+  }
+
+  /*
+   * Reorders whole rows of a range by the values in some of its columns,
+   * like sortrows a1 - h50 by c desc, a asc. Every cell of a row moves with
+   * it. A formula's references into the range move with it, so a formula
+   * that reads its own row still reads it after the sort; its references
+   * to cells outside the range keep reading the cells they read before.
+   *
+   * Parameters:
+   *    startCell  : The top left cell of the range.
+   *    endCell    : The bottom right cell of the range.
+   *    columns    : The 0-based columns to sort by, the most important first.
+   *    descending : For each column, true to sort it from largest to smallest.
+   * Returns:
+   *    A message that says whether the rows were sorted.
+   */
+  String sortRows(String startCell, String endCell, int[] columns, boolean[] descending) {
     int startRow = getRow(startCell);
     int startCol = getCol(startCell);
     int endRow = getRow(endCell);
     int endCol = getCol(endCell);
-    ArrayList<Cell> list = new ArrayList<Cell>();
-    for (int row = startRow; row <= endRow; row++) {
-      for (int col = startCol; col <= endCol; col++) {
-        list.add(matrix[row][col]);
-      }
+    if (startRow < 0 || startCol < 0 || endRow < startRow || endCol < startCol) {
+      return "invalid cell location";
     }
-    list.sort(null);
-    int index = list.size() - 1;
-    for (int row = startRow; row <= endRow; row++) {
-      for (int col = startCol; col <= endCol; col++) {
-        matrix[row][col] = list.get(index);
-        index--;
+    for (int col : columns) {
+      if (col < startCol || col > endCol) {
+        return "column " + CellAddress.columnName(col) + " is outside the range";
       }
-    } 
+    }
+
+    int[] held = locks.lock(startRow, startCol, endRow, endCol);
+    try {
+      sortRows(startRow, startCol, endRow, endCol, columns, descending);
+    } finally {
+      locks.unlock(held);
+    }
+    recalc();
+    return "sorted rows";
   }
 
-  // if the user inputs an invalid number with too many decimal
-  // points, then this will return false
-  private boolean decimalRepeat(String[] tokens) {
-    for(int i = 0; i < tokens.length; i++) {
-      int periods = 0;
-      for (int c = 0; c < tokens[i].length(); c++) {
-        if (tokens[i].charAt(c) == '.') {
-          periods++;
+  // reorders the rows of a range that has been checked and locked
+  private void sortRows(int startRow, int startCol, int endRow, int endCol, int[] columns, boolean[] descending) {
+    // sort by the last key first; each pass keeps the order of the rows
+    // it finds equal, so the first key ends up deciding
+    int rows = endRow - startRow + 1;
+    int[] order = SortKeys.identity(rows);
+    for (int key = columns.length - 1; key >= 0; key--) {
+      Cell[] column = new Cell[rows];
+      for (int row = 0; row < rows; row++) {
+        column[row] = cells.get(startRow + row, columns[key]);
+      }
+      order = SortKeys.sort(SortKeys.rank(column), descending[key], order);
+    }
+
+    // each column is read in its new order before any of it is written;
+    // plain numbers are moved as doubles without building cells for them
+    Cell[] moved = new Cell[rows];
+    double[] numbers = new double[rows];
+    boolean[] isNumber = new boolean[rows];
+    for (int col = startCol; col <= endCol; col++) {
+      for (int row = 0; row < rows; row++) {
+        int from = startRow + order[row];
+        isNumber[row] = cells.isNumber(from, col);
+        if (isNumber[row]) {
+          numbers[row] = cells.getValue(from, col);
+          moved[row] = null;
+        } else {
+          moved[row] = cells.get(from, col);
         }
       }
-      if (periods > 1) {
-        return true;
+      for (int row = 0; row < rows; row++) {
+        if (order[row] == row) {
+          continue;
+        }
+        int target = startRow + row;
+        int targetCol = col;
+        if (isNumber[row]) {
+          double value = numbers[row];
+          Runnable record = cells.isNumber(target, col) ? null : () -> dependencies.removeCell(target, targetCol);
+          change(target, col, record, () -> cells.setNumber(target, targetCol, value, version.incrementAndGet()));
+        } else {
+          setCell(target, col, moveFormula(moved[row], row - order[row], startRow, startCol, endRow, endCol));
+        }
       }
     }
-    return false;
   }
-  
-  // method that prints the grid in correct format
-  private String print() {
-    String result = "";
 
-    int gap1;
-    int gap2;
+  // returns the cell to put in place of a cell that moves rowShift rows in
+  // a sort of the rectangle: a formula whose references into the rectangle
+  // move with it (see Formula.moveReferences) is compiled again at its new
+  // row; any other cell is moved as it is
+  private Cell moveFormula(Cell cell, int rowShift, int startRow, int startCol, int endRow, int endCol) {
+    if (!(cell instanceof NumberCell)) {
+      return cell;
+    }
+    NumberCell number = (NumberCell) cell;
+    Formula formula = number.getFormula();
+    if (formula == null || formula.getReferences().length == 0) {
+      return cell;
+    }
+    String expression = Formula.moveReferences(number.getExpression(), rowShift,
+        startRow, startCol, endRow, endCol, rowCount);
+    if (expression == null) {
+      return cell;
+    }
+    NumberCell rebuilt = new NumberCell();
+    if (!rebuilt.setExpression(expression, number.getAnchorRow() + rowShift, number.getAnchorCol())) {
+      return cell;
+    }
+    return rebuilt;
+  }
 
-    gap2 = cellWidth / 2;
-    if (cellWidth % 2 == 0) {
-      gap1 = (cellWidth - 1) / 2;
-    } else {
-      gap1 = (cellWidth - 1) / 2;
+  // returns the values of the range when every cell in it is a plain
+  // number, read straight from the store, or null otherwise
+  private double[] readNumbers(int startRow, int startCol, int endRow, int endCol) {
+    if (startRow < 0 || startCol < 0 || endRow < startRow || endCol < startCol) {
+      return null;
+    }
+    double[] numbers = new double[(endRow - startRow + 1) * (endCol - startCol + 1)];
+    if (!cells.readNumbers(startRow, startCol, endRow, endCol, numbers)) {
+      return null;
     }
+    return numbers;
+  }
 
-    String gap1str = "";
-    String gap2str = "";
+  // writes sorted values back into the range row by row, from the last
+  // value to the first when reversed is true
+  private void writeNumbers(int startRow, int startCol, int endRow, int endCol, double[] numbers, boolean reversed) {
+    int index = reversed ? numbers.length - 1 : 0;
+    for (int row = startRow; row <= endRow; row++) {
+      for (int col = startCol; col <= endCol; col++) {
+        int changedRow = row;
+        int changedCol = col;
+        double value = numbers[index];
+        change(row, col, null, () -> cells.setNumber(changedRow, changedCol, value, version.incrementAndGet()));
+        index += reversed ? -1 : 1;
+      }
+    }
+  }
 
-    for (int index = 0; index < gap1; index++) {
-      gap2str += " ";
+  // method that prints the whole grid in correct format
+  String print() {
+    return print(0, 0, rowCount - 1, colCount - 1);
+  }
+
+  // method that prints just the window of the grid between two cells,
+  // for example, if print a1 - c5 is entered
+  String print(String startCell, String endCell) {
+    int startRow = getRow(startCell);
+    int startCol = getCol(startCell);
+    int endRow = getRow(endCell);
+    int endCol = getCol(endCell);
+    if (startRow < 0 || startCol < 0) {
+      return "invalid cell location";
     }
-    for (int index = 0; index < gap2; index++) {
-      gap1str += " ";
+    if (endRow < 0) {
+      endRow = rowCount - 1;
     }
-    
-    String gap = "";
-    String dashGap = "";
-    for (int index = 0; index < cellWidth; index++) {
-      gap += " ";
-      dashGap += "-";
+    if (endCol < 0) {
+      endCol = colCount - 1;
+    }
+    return print(startRow, startCol, endRow, endCol);
+  }
+
+  // method that prints the window of the grid from startRow, startCol to
+  // endRow, endCol (for example, print a1 - c5) into the reusable print buffer
+  String print(int startRow, int startCol, int endRow, int endCol) {
+    StringBuilder buffer = printBuffer.get();
+    buffer.setLength(0);
+    try {
+      print(buffer, startRow, startCol, endRow, endCol);
+    } catch (IOException e) {
+      // a StringBuilder never throws
     }
+    return buffer.toString();
+  }
+
+  /*
+   * Streams a text based version of a window of the grid to out, one line at
+   * a time, so that a large sheet can be written straight to a file or the
+   * console without building the whole picture as one String. Each cell's
+   * display string is computed once.
+   *
+   * Parameters:
+   *    out      : Where the text is written, such as a StringBuilder or a Writer.
+   *    startRow, startCol : The top left cell of the window (0-based).
+   *    endRow, endCol     : The bottom right cell of the window, inclusive.
+   */
+  public void print(Appendable out, int startRow, int startCol, int endRow, int endCol) throws IOException {
+    startRow = Math.max(startRow, 0);
+    startCol = Math.max(startCol, 0);
+    endRow = Math.min(endRow, rowCount - 1);
+    endCol = Math.min(endCol, colCount - 1);
 
-    String topRow = "    |";
-    
-    for (int index = 0; index < colCount; index++) {
-      topRow += gap1str + alphabet.charAt(index) + gap2str + "|";
+    // the column name is centered, with the extra space on the left
+    // when it does not divide evenly
+    StringBuilder line = new StringBuilder();
+    line.append("    |");
+    for (int col = startCol; col <= endCol; col++) {
+      String name = CellAddress.columnName(col);
+      int shown = Math.min(name.length(), cellWidth);
+      int leftGap = (cellWidth - shown + 1) / 2;
+      appendRepeated(line, ' ', leftGap);
+      line.append(name, 0, shown);
+      appendRepeated(line, ' ', cellWidth - shown - leftGap);
+      line.append('|');
     }
-    result += topRow + "\n";
-    result += "----+";
-    for (int cols = 0; cols < colCount; cols++) {
-      result += dashGap + "+";
+    line.append('\n');
+    out.append(line);
+
+    // the separator that goes under the top row and every row of cells
+    StringBuilder separator = new StringBuilder();
+    separator.append("----+");
+    for (int col = startCol; col <= endCol; col++) {
+      appendRepeated(separator, '-', cellWidth);
+      separator.append('+');
     }
-    result += "\n";
+    separator.append('\n');
+    out.append(separator);
 
     // all the code in this method above this comment is for the standardized printing of the
     // top row and the left-most column and the rest of the method (below) is 
     // printing the body of the matrix
-    int gapWithVar = 0;
-    
-    for (int rows = 0; rows < rowCount; rows++) {
-      result += String.format("%3d |", (rows + 1));
-      for (int cols = 0; cols < colCount; cols++) {
-        if (matrix[rows][cols] == null) {
-          result += gap + "|";
+    for (int row = startRow; row <= endRow; row++) {
+      line.setLength(0);
+      String number = Integer.toString(row + 1);
+      appendRepeated(line, ' ', 3 - number.length());
+      line.append(number).append(" |");
+      for (int col = startCol; col <= endCol; col++) {
+        Cell cell = cells.get(row, col);
+        if (cell == null) {
+          appendRepeated(line, ' ', cellWidth);
         } else {
-          int length = matrix[rows][cols].toString().length();
-          if (length < cellWidth) {
-            gapWithVar = cellWidth - length;
-            for (int index = 0; index < gapWithVar; index++) {
-              result += " ";
-            }
-            result += matrix[rows][cols].toString();
-            result += "|";
+          String display = cell.toString();
+          if (display.length() < cellWidth) {
+            appendRepeated(line, ' ', cellWidth - display.length());
+            line.append(display);
           } else {
-            result += matrix[rows][cols].toString().substring(0, cellWidth) + "|";
+            line.append(display, 0, cellWidth);
           }
         }
+        line.append('|');
       }
-      result += "\n";
-      result += "----+";
-      for (int cols = 0; cols < colCount; cols++) {
-        result += dashGap + "+";
-      }
-      result += "\n";
+      line.append('\n');
+      out.append(line);
+      out.append(separator);
     }
+  }
 
-    return result;
+  // adds count copies of ch to line
+  private static void appendRepeated(StringBuilder line, char ch, int count) {
+    for (int index = 0; index < count; index++) {
+      line.append(ch);
+    }
   }
 
 }
@@ -32,13 +32,12 @@ import java.util.*;
 public abstract class GridBase {
 
     /**
-     * Have the one and only Grid
+     * Have the one and only Grid. It is volatile so that the grid set on one
+     * thread is seen by the threads that evaluate formulas and by any other
+     * thread that uses the grid; the grid itself may be used by several
+     * threads at once.
      */
-    public static GridBase grid = null;
-
-    private static final String mathOperators = "+-/*%^";
-
-    private static final String[] functionList = { "avg", "sum", "sqrt", "log", "sorta", "sortd" };
+    public static volatile GridBase grid = null;
 
     // constructor which sets the grid singleton to this instance
     public GridBase() {
@@ -72,6 +71,191 @@ public abstract class GridBase {
      */
     abstract public String processCommand(String input);
 
+    /**
+     * Reads the value of a single cell, the way "value [cell]" does but without
+     * building or parsing a command. Formulas use this to read the cells they
+     * reference.
+     * 
+     * @param row The row of the cell (0-based).
+     * @param col The column of the cell (0-based).
+     * @return the value of the cell; empty cells are 0 and cells outside the grid are #REF!
+     */
+    abstract public double getCellValue(int row, int col);
+
+    /**
+     * Returns the dictionary that the text cells of this sheet keep their
+     * text in (see TextCell). It may be used from several threads at once.
+     * 
+     * @return the text dictionary of the sheet
+     */
+    abstract public TextDictionary getTextDictionary();
+
+    /**
+     * Adds up the values of the cells in a rectangular range. Empty cells count
+     * as zero.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @return the sum of the values in the range
+     */
+    abstract public double getRangeSum(int startRow, int startCol, int endRow, int endCol);
+
+    /**
+     * Averages the values of the cells in a rectangular range. Empty cells count
+     * as zero and are included in the count.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @return the average of the values in the range
+     */
+    abstract public double getRangeAvg(int startRow, int startCol, int endRow, int endCol);
+
+    /**
+     * Finds the smallest value of the number cells in a rectangular range.
+     * Text and empty cells are skipped.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @return the smallest value, or 0 if the range holds no numbers
+     */
+    abstract public double getRangeMin(int startRow, int startCol, int endRow, int endCol);
+
+    /**
+     * Finds the largest value of the number cells in a rectangular range.
+     * Text and empty cells are skipped.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @return the largest value, or 0 if the range holds no numbers
+     */
+    abstract public double getRangeMax(int startRow, int startCol, int endRow, int endCol);
+
+    /**
+     * Counts the number cells in a rectangular range. Dates count as numbers.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @return the number of cells in the range that hold a number, formula or date
+     */
+    abstract public int getRangeCount(int startRow, int startCol, int endRow, int endCol);
+
+    /**
+     * Finds the k-th largest value of the number cells in a rectangular range,
+     * so k = 1 is the largest. Text and empty cells are skipped.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @param k        The position of the value, counting from the largest.
+     * @return the value, or #VALUE! if the range holds fewer than k numbers
+     */
+    abstract public double getRangeLargest(int startRow, int startCol, int endRow, int endCol, int k);
+
+    /**
+     * Finds the k-th smallest value of the number cells in a rectangular range,
+     * so k = 1 is the smallest. Text and empty cells are skipped.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @param k        The position of the value, counting from the smallest.
+     * @return the value, or #VALUE! if the range holds fewer than k numbers
+     */
+    abstract public double getRangeSmallest(int startRow, int startCol, int endRow, int endCol, int k);
+
+    /**
+     * Finds the median of the number cells in a rectangular range: the middle
+     * value, or the average of the two middle values. Text and empty cells
+     * are skipped.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @return the median, or 0 if the range holds no numbers
+     */
+    abstract public double getRangeMedian(int startRow, int startCol, int endRow, int endCol);
+
+    /**
+     * Adds the formula cells of a rectangular range whose values are out of
+     * date to a list. Before a formula is evaluated, CellEvaluator uses this
+     * to find the cells it has to bring up to date first.
+     * 
+     * @param startRow The first row of the range (0-based).
+     * @param startCol The first column of the range (0-based).
+     * @param endRow   The last row of the range, inclusive.
+     * @param endCol   The last column of the range, inclusive.
+     * @param dirty    The list the out of date cells are added to.
+     */
+    abstract public void addDirtyCells(int startRow, int startCol, int endRow, int endCol, List<NumberCell> dirty);
+
+    /**
+     * Runs every command in a text file, such as one written by "save [file]".
+     * The commands are parsed in parallel and applied in file order without
+     * evaluating anything; the grid is recalculated once at the end.
+     * 
+     * @param filename The file of commands to load.
+     * @return a report of how many lines were loaded, how fast, and how many failed
+     * @throws java.io.IOException if the file cannot be read
+     */
+    abstract public String loadCommands(String filename) throws java.io.IOException;
+
+    /**
+     * Replaces the contents of the grid with a binary snapshot written by
+     * "save [file]" (see SnapshotFile). The cells are rebuilt directly from the
+     * snapshot, without going through processCommand.
+     * 
+     * @param filename The snapshot file to load.
+     * @return the number of cells loaded
+     * @throws java.io.IOException if the file cannot be read or is not a snapshot
+     */
+    abstract public int loadSnapshot(String filename) throws java.io.IOException;
+
+    /**
+     * Every change to a cell's expression or value stamps the cell with a new,
+     * higher version number. A UI can remember the version it last showed and ask
+     * for just the cells that changed since then.
+     * 
+     * @return the version of the most recent change
+     */
+    abstract public long getVersion();
+
+    /**
+     * Gets the strings that a rectangular region of cells display, all in one
+     * call. Empty cells, and cells outside the grid, display as "".
+     * 
+     * @param startRow The first row of the region (0-based).
+     * @param startCol The first column of the region (0-based).
+     * @param endRow   The last row of the region, inclusive.
+     * @param endCol   The last column of the region, inclusive.
+     * @return the display strings, indexed [row - startRow][col - startCol]
+     */
+    abstract public String[][] getDisplaySnapshot(int startRow, int startCol, int endRow, int endCol);
+
+    /**
+     * Finds the cells of a rectangular region that changed after a version.
+     * 
+     * @param version  The version the caller last saw (see getVersion).
+     * @param startRow The first row of the region (0-based).
+     * @param startCol The first column of the region (0-based).
+     * @param endRow   The last row of the region, inclusive.
+     * @param endCol   The last column of the region, inclusive.
+     * @return the changed cells, each one as {row, col}
+     */
+    abstract public List<int[]> getChangedSince(long version, int startRow, int startCol, int endRow, int endCol);
+
     /**
      * Method smartSplit : splits any expression into tokens, regardless of spaces.
      * <p>
@@ -80,141 +264,24 @@ public abstract class GridBase {
      * It will convert the following into an array of string tokens. a2-(34 / sqrt
      * 7)+( (c7-c8) /9)
      * <p>
-     * This should go into the NumberCell, but it is nice to share this with
-     * students as a helper method. So, we put it here.
+     * The cells themselves read expressions with an ExpressionLexer, which finds
+     * the same tokens without creating a String for each one. This method is kept
+     * for code that wants the tokens as Strings.
      * 
      * @param exp : The expression to split into tokens.
      * @return An array of Strings, each one being a token from the expression.
      */
     public static String[] smartSplit(String exp) {
         ArrayList<String> tokens = new ArrayList<String>();
-
-        for (int index = 0; index < exp.length();) {
-            // start of a new token
-            // let's figure out the type
-            char ch = exp.charAt(index);
-            if (Character.isAlphabetic(ch)) {
-                String remainder = exp.substring(index);
-                // we are a cell location or function
-                int funcLength = getFunctionTokenLength(remainder);
-                if (funcLength > 0) {
-                    // it is a function name!
-                    tokens.add(exp.substring(index, funcLength + index));
-                    index += funcLength;
-                    continue;
-                }
-                String cellName = parseCellNameFrom(remainder);
-                if (cellName == null) {
-                    // we are a malformed expression
-                    return null;
-                }
-                tokens.add(cellName);
-                index += cellName.length();
-                continue;
-            }
-            if (Character.isDigit(ch) || ch == '.'
-                    || (ch == '-' && index + 1 < exp.length() && Character.isDigit(exp.charAt(index + 1)))) {
-                // we are a number. Must end with an operator, ), or space.
-                int tokenLength = 1;
-                // if our current character is '-', then we know we have a token length of at
-                // least 2.
-                if (ch == '-') {
-                    tokenLength = 2;
-                    ch = exp.charAt(index + 1);
-                }
-                while ((Character.isDigit(ch) || ch == '.') && tokenLength + index < exp.length()) {
-                    ch = exp.charAt(index + tokenLength);
-                    if (Character.isDigit(ch) || ch == '.')
-                        tokenLength++;
-                }
-                // if the exp ends with a number, or next char is a space, parenthesis, or
-                // operator, then add the token.
-                if (tokenLength + index == exp.length() || " ()".contains("" + ch) || mathOperators.contains("" + ch)) {
-                    tokens.add(exp.substring(index, index + tokenLength));
-                    index += tokenLength;
-                    continue;
-                }
+        ExpressionLexer lexer = new ExpressionLexer(exp);
+        int type;
+        while ((type = lexer.next()) != ExpressionLexer.END) {
+            if (type == ExpressionLexer.ERROR) {
                 // we are a malformed expression
                 return null;
             }
-            if (mathOperators.contains("" + ch) || "():".contains("" + ch)) {
-                tokens.add("" + ch);
-                index++;
-                continue;
-            }
-            if (ch != ' ') {
-                // a malformed expression
-                return null;
-            }
-            index++;
+            tokens.add(lexer.text());
         }
-
         return tokens.toArray(new String[0]);
     }
-
-    /**
-     * This will see if the start of this string is a cell location or cellName. It
-     * may NOT be a valid location in the current matrix depending on the matrix
-     * size.
-     * 
-     * @param s The string to check.
-     * @return null if not a cell location, otherwise the cell location.
-     */
-    private static String parseCellNameFrom(String s) {
-        if (!Character.isAlphabetic(s.charAt(0)))
-            return null;
-        if (s.length() < 2 || !Character.isDigit(s.charAt(1))) {
-            // second digit is not a number!
-            return null;
-        }
-        if (s.length() == 2) {
-            // it is exactly a cellName
-            return s;
-        }
-        // check the 3rd character for operator, parenthesis, or space
-        String ch = s.substring(2, 3);
-        if (mathOperators.contains(ch) || "():".contains(ch) || ch.equals(" ")) {
-            return s.substring(0, 2);
-        }
-        // check the 3rd character is digit AND
-        // that the 4th character is operator, parenthesis, or space, or end of string
-        if (s.length() > 2 && Character.isDigit(s.charAt(2))) {
-            if (s.length() == 3) {
-                // it is exactly a cellName of length 3
-                return s;
-            }
-            ch = s.substring(3, 4);
-            if (mathOperators.contains(ch) || "():".contains(ch) || ch.equals(" ")) {
-                return s.substring(0, 3);
-            }
-        }
-        // our 3rd or 4th character failed
-        return null;
-    }
-
-    /**
-     * This checks the start of this input string and determines if it is a function
-     * name. This currently assumes that the expression cell supports exactly 2
-     * functions: sqrt and log.
-     * 
-     * @param s The string to check
-     * @return 0 if the input is not a function name, or the number of characters in
-     *         the function name.
-     */
-    private static int getFunctionTokenLength(String s) {
-        s = s.toLowerCase();
-        int ich = 0;
-        for (String func : GridBase.functionList) {
-            if (s.startsWith(func)) {
-                ich = func.length();
-            }
-        }
-        if (ich == 0)
-            return 0;
-        // we need to see if we have a cellName, (, or space
-        if (s.charAt(ich) == ' ' || s.charAt(ich) == '(' || null != parseCellNameFrom(s.substring(ich)))
-            return ich;
-
-        return 0;
-    }
 }
\ No newline at end of file
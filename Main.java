@@ -33,6 +33,7 @@ public class Main extends ExcelBase {
      *   width = 6 : resizes the width of a cell to be 6 characters wide
      *               when printing the grid. 
      *   load file1.txt  : opens the file specified and processes all commands in it.
+     *   load file1.bin  : replaces the grid with a binary snapshot saved by "save file1.bin".
      * 
      * Parameters:
      *    command : The command to be processed (described above)
@@ -47,18 +48,24 @@ public class Main extends ExcelBase {
           return "You have many different command options, some are as follows: rows, rows = #, cols, cols = #, width, width = #, and print. If you type in rows, it will return how many rows the Grid will manage. The rows = # sets the number of rows the Grid will manage, the count could be validated to be between 1 – 49, and it returns how many new rows are in the Grid.\nIf you type in cols, it will return how many columns the Grid will manage. If cols = # is typed, it sets the number of columns the Grid will manage, the count could be validated to be between 1 – 26 and  it returns how many new columns are in the Grid.\nIf width is typed in, it returns how wide each cell in the grid/matrix is when it is printed. If width = # is typed, it sets how wide each cell in the grid/matrix is when it is printed, the size should be validated to be between 3 – 29, and it returns the new width.\nLastly, if print is typed in, it returns a string representation of a printed grid/matrix.\nIf you would like to enter an expression, that is also possible, just assing it to a cell with parentheses before and after the expression, in the following format a1 = ( 3 * 4 ).\nYou can also input/assign a date in MM/DD/YY or MM/DD/YYYY to a cell and it will store that into whatever cell you have assigned it to.\nIn addition, you can sort in ascending order and descending order. sorta [range] will sort from smallest to alrgest and sortd [range] will sort from largest to smallest.\nIf you want, you also have the option to load and save files, just enter load \"filename\" and save \"filename\".\nFinally, you are aslo able to find the sum and average of a range of cells if you input sum [range] or avg [range]. Have fun exploring this Text Excel!";
         }
       
+        // loads a binary snapshot (a file ending in .bin) straight into the grid
+        if (command.startsWith("load") && SnapshotFile.isSnapshot(command)) {
+          int index = command.indexOf(" ");
+          String filename = command.substring(index + 1);
+          try {
+            int count = GridBase.grid.loadSnapshot(filename);
+            result = "File loaded successfully (" + count + " cells)";
+          } catch (IOException ex) {
+            result = "Could not load file: " + ex.getMessage();
+          }
+        }
+
         // loads all file related commands here
-        if (command.startsWith("load")) {
+        else if (command.startsWith("load")) {
           int index = command.indexOf(" ");
           String filename = command.substring(index + 1);
-          result = "File loaded successfully";
           try {
-            File file = new File(filename);
-            Scanner lineReader = new Scanner(file);
-            while (lineReader.hasNextLine()) {
-            String line = lineReader.nextLine();
-            GridBase.grid.processCommand(line);
-            }
+            result = GridBase.grid.loadCommands(filename);
           }
           catch (Exception ex) {
             result = "Could not find file";
@@ -20,6 +20,8 @@ public class MainUI extends JFrame {
 	private JTextField outputWindow = new JTextField(50);
 	private JTextField[][] textGrid = null;
 	private JTextField input;
+	// the engine version shown in the grid, or -1 when every cell needs to be shown
+	private long shownVersion = -1;
 
 	public MainUI() {
 		super("Text Excel UI");
@@ -42,21 +44,37 @@ public class MainUI extends JFrame {
 	}
 
 	/**
-	 * When the display needs to be updated, we go through
-	 * each and every cell in the grid, get the new display,
-	 * and update the JTextCell to the proper display text.
+	 * When the display needs to be updated, we ask the engine for
+	 * the cells that changed since the version we last showed, and
+	 * update only those JTextCells to the proper display text. The
+	 * first time (and after the grid is resized) we get a snapshot
+	 * of every cell in one call.
 	 */
 	private void updateUI() {
 		// the textGrid includes labels. So, when we update
 		// the UI, we should only need to update the rows & cols > 1.
 		// The textGrid[x][0] are number labels for the rows.
 		// The textGrid[0][x] are letter labels for the columns
-		for (int row = 1; row < rows; row++) {
-			for (int col = 1; col < cols; col++) {
-				String s = engine.processCommand("display " + getCellName(row, col));
-				textGrid[row][col].setText(s);
+		long version = engine.getVersion();
+		if (shownVersion < 0) {
+			String[][] snapshot = engine.getDisplaySnapshot(0, 0, rows - 2, cols - 2);
+			for (int row = 1; row < rows; row++) {
+				for (int col = 1; col < cols; col++) {
+					textGrid[row][col].setText(snapshot[row - 1][col - 1]);
+				}
+			}
+		} else {
+			for (int[] cell : engine.getChangedSince(shownVersion, 0, 0, rows - 2, cols - 2)) {
+				updateTextField(cell[0] + 1, cell[1] + 1);
 			}
 		}
+		shownVersion = version;
+	}
+
+	// refreshes one JTextField from the display of its cell
+	private void updateTextField(int row, int col) {
+		String[][] snapshot = engine.getDisplaySnapshot(row - 1, col - 1, row - 1, col - 1);
+		textGrid[row][col].setText(snapshot[0][0]);
 	}
 
 	private String getCellName(int row, int col) {
@@ -77,6 +95,9 @@ public class MainUI extends JFrame {
 			outputWindow.setText(result);
 		}
 
+		// the edited field always goes back to what its cell displays,
+		// even if the command did not change the cell
+		updateTextField(row, col);
 		updateUI();
 	}
 
@@ -131,6 +152,7 @@ public class MainUI extends JFrame {
 		createAllTextFields();
 		contentPane.add(gridPanel);
 		attachEvents();
+		shownVersion = -1;
 
 		contentPane.revalidate();
 	}
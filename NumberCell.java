@@ -1,26 +1,53 @@
+import java.util.*;
+
 /*
  * The NumberCell may hold numbers, an expression, or functions and it 
  * calculates the double value of a cell from the expression and it 
  * evaluates an expression on demand (LazyEvaluation) to avoid problems 
- * when caching values. It uses the GridBase.smartSplit() to 
- * tokenize an expression.
+ * when caching values. It uses an ExpressionLexer to tokenize an
+ * expression once, when the expression is set, and keeps the compiled
+ * Formula to evaluate on demand. The Formula is shared with every cell
+ * whose expression has the same shape relative to its own location, so
+ * the cell also keeps that location (its anchor) to evaluate it from.
+ *
+ * A cell may be evaluated on several threads while other threads change
+ * the cells it reads. Every change the Grid makes to an input of the
+ * formula moves the cell to a new generation, and a value is only kept if
+ * the generation did not move while it was being calculated, so a value
+ * worked out from inputs that changed halfway through is thrown away
+ * instead of being kept as if it were up to date. While a writer is in the
+ * middle of changing an input (between beginChange() and endChange()) no
+ * value is kept at all. getValue() only returns a value that was kept, and
+ * tries again when one could not be, so a value that was read while it was
+ * being changed is never handed out or used to work out another formula.
  *
  */
 public class NumberCell extends Cell {
     // these are private instance fields that ar e refernced throughout the
     // class 
-    private String input;
-    private boolean equation = false;
     private String function = "";
-    private Cell[][] matrix;
 
-    // this is a mutator that accepts a String function and a matrix
-    // and sets the value of the parameters and equation inside of the method
-    public void setFunction(String function, Cell[][] matrix) {
+    // the compiled expression, built by setExpression(), and the location
+    // its relative cell references are counted from
+    private Formula formula;
+    private int row = 0;
+    private int col = 0;
+
+    // the last value calculated from the formula, which is only
+    // recalculated after the Grid marks this cell as dirty. The cell is
+    // dirty while the generation it was calculated at is not the current
+    // one; changing counts the writers that are changing its inputs.
+    private volatile double cachedValue;
+    private volatile long generation = 1;
+    private volatile long calculated = 0;
+    private int changing = 0;
+
+    // this is a mutator that accepts a String function (a sum or average
+    // of a range) and sets it as the expression of the cell at row, col.
+    // It returns false if the function does not compile.
+    public boolean setFunction(String function, int row, int col) {
       this.function = function;
-      setExpression(function);
-      this.matrix = matrix;
-      equation = true;
+      return setExpression(function, row, col);
     }
 
     // this acceptes a Cell that is used when sorting over a region and
@@ -41,251 +68,171 @@ public class NumberCell extends Cell {
     }
 
     // this is a mutator that accepts a String input and returns a boolean
-    // if the tokens are null or have a value that is invalid, it will 
-    // return false, otherwise it will return true
+    // if the tokens are null, have a value that is invalid or do not form
+    // a well formed expression, it will return false, otherwise it will
+    // compile the expression and return true. Dividing by a literal 0 is
+    // also invalid.
     public boolean setExpression(String input) {
-      String[] tokens = GridBase.smartSplit(input);
-      if (tokens == null) {
+      return setExpression(input, row, col);
+    }
+
+    // sets the expression of the cell at row, col, so that its cell
+    // references are compiled relative to that location
+    public boolean setExpression(String input, int row, int col) {
+      Formula compiled = Formula.compile(input, row, col);
+      if (compiled == null) {
         return false;
       }
-      for(int index = 0; index < tokens.length - 1; index++) {
-        if(tokens[index].equals("/") && tokens[index+1].equals("0") ) {
-          return false;
-        }
-      }
+      formula = compiled;
+      this.row = row;
+      this.col = col;
+      invalidate();
       super.setExpression(input);
       return true;
     }
-  
-    /*
-     * This returns the string to be presented in the grid.
-     */  
-    public String toString() {
-        return getValue() + "";
+
+    // sets the expression together with a formula that was already
+    // compiled from it (for example, loaded from a binary snapshot), so
+    // the expression does not need to be tokenized or parsed again
+    public void setFormula(String input, Formula compiled) {
+      setFormula(input, compiled, 0, 0);
     }
-  
-    /*
-     * This will return the number for this cell.
-     */
-    public double getValue() {
-      // gets tokens from the expression using a robust parser
-      String[] tokens = GridBase.smartSplit(getExpression());
 
-      // if the input is an equation then it will get the average
-      // or sum depending on the input
-      if (equation) {
-        String start = tokens[2];
-        String end = tokens[4];
-        String f = tokens[1];
-        if (f.equals("sum")) {
-          return getRangeSum(start, end);
-        }
-        if (f.equals("avg")) {
-          return getRangeAvg(start, end);
-        }
-        System.out.println("ERROR");
-        return -500;
-      }
-      
-      // deals with any starting parenthesis in the string value 
-      // (which is everything after the equal sign, minus the space 
-      // and parentheses at the beginning and end)
-      if(tokens[0].equals("(")) {
-        String[] copy = new String[tokens.length - 2];
-        for(int index = 1; index < tokens.length - 1; index++) {
-          copy[index-1] = tokens[index];
-        }
-        tokens = copy;
-      }
+    // the same, for a formula whose references are relative to row, col
+    public void setFormula(String input, Formula compiled, int row, int col) {
+      formula = compiled;
+      this.row = row;
+      this.col = col;
+      invalidate();
+      super.setExpression(input);
+    }
 
-      // if the user inputs a log or sqrt into the expression, those
-      // operators take highest precedence and as such they should
-      // be done first
-      for (int index = 0; index < tokens.length; index++) {
-        double num = Double.MIN_VALUE;
-        if(tokens[index].equals("log")) {
-        num = getTokenValue(tokens[index+1]);
-        num = Math.log(num);
-      }
-      if(tokens[index].equals("sqrt")) {
-        num = getTokenValue(tokens[index+1]);
-        num = Math.sqrt(num);
-      }
-      if(num != Double.MIN_VALUE) {
-        tokens = removeIndex(tokens, index);
-        tokens[index] = "" + num;
-        index--;
-      }
-    } 
+    // returns the compiled formula, or null if no expression has been set
+    public Formula getFormula() {
+      return formula;
+    }
 
-    // while there are more tokens/values left in the expression, this while
-    // loop will continue and complete the operations in the expression
-    while(tokens.length > 1) {
-      int index = highestPriority(tokens);
-      String answer = "ERROR";
-      double one = getTokenValue(tokens[index]);
-      String operator = tokens[index + 1];
-      double two = getTokenValue(tokens[index + 2]);
+    // returns the location the formula's references are relative to
+    public int getAnchorRow() {
+      return row;
+    }
 
-      // conducts the operations based on order of priority (highest
-      // priority on top) and does the appropriate operation
-      if(operator.equals("^")) {
-        answer = "" + Math.pow(one, two);
-      } else if(operator.equals("*")) {
-        answer = "" + (one * two);
-      } else if(operator.equals("/")) {
-        answer = "" + (one / two);
-      } else if(operator.equals("+")) {  
-        answer = "" + (one + two);
-      } else if(operator.equals("-")) {
-        answer = "" + (one - two);
-      }
-      String[] replacement = new String[tokens.length - 2];
-      for(int num = 0; num < index; num++) {
-        replacement[num] = tokens[num];
-      }
-      replacement[index] = answer;
-      for (int num = index + 3; num < tokens.length; num++) {
-        replacement[num-2] = tokens[num];
-      }
-      tokens = replacement;
+    public int getAnchorCol() {
+      return col;
     }
-    return getTokenValue(tokens[0]);
-  }
 
-  
-  // attempts to parse through the token
-  // (if the token is not an actual number, it must
-  // be a cell location)
-  private double parseTokenValue(String token) {
-    try {
-      // returns the value as a double
-      return Double.parseDouble(token);
-    } catch (Exception e) {
-      try {
-        // Asks the Grid to get the value.
-        String value = GridBase.grid.processCommand("value " + token);
-        return Double.parseDouble(value);
-      } catch (Exception x) {
-        return 0.0;
-      }
+    // marks the cached value as stale, so that the next getValue()
+    // recalculates it from the formula. Returns true if it already was.
+    public synchronized boolean invalidate() {
+      boolean wasDirty = isDirty();
+      generation++;
+      return wasDirty;
     }
 
-  }
+    // marks the cached value as stale before a writer changes a cell the
+    // formula reads; no new value is kept until endChange() is called.
+    // Returns true if the value already was stale.
+    synchronized boolean beginChange() {
+      boolean wasDirty = isDirty();
+      changing++;
+      generation++;
+      return wasDirty;
+    }
 
-  // attempts to get a double value from the token
-  // (if the token is not an actual number, it must
-  // be a cell location -- and that is represented by the 
-  // first if statement in the method)
-  private double getTokenValue(String token) {
-    if( Character.isLetter(token.charAt(0))) {
-      return parseTokenValue(token);
-    } else {
-      return Double.parseDouble(token);
+    // called once the writer has changed the cell; the value is stale again,
+    // since it may have been calculated from the cell before it changed
+    synchronized void endChange() {
+      changing--;
+      generation++;
     }
-  }
 
-  // this method will accept an array of tokens as well 
-  // as an index and it will return a String array that 
-  // removes the token at index
-  private String[] removeIndex(String[] tokens, int index) {
-    String[] replacement = new String[tokens.length - 1];
-    for(int num = 0; num < index; num++) {
-      replacement[num] = tokens[num];
+    // returns true if the cached value needs to be recalculated
+    public boolean isDirty() {
+      return calculated != generation;
     }
-    for(int num = index + 1; num < tokens.length; num++) {
-      replacement[num-1] = tokens[num];
+
+    // returns the generation a calculation that starts now works from
+    long getGeneration() {
+      return generation;
     }
-    return replacement;
-  }
 
-  // returns an int number that represents the priority that should
-  // should be given based on the operator 
-  private int highestPriority(String[] tokens) {
-    int highestIndex = 0;
-    int maxValue = 0;
-    for (int index = 0; index < tokens.length; index++) {
-      // the highger the piority of the operator, the higher the number of value
-      int value = 0;
-      if (tokens[index].equals("^")) {
-        value = 3;
+    // keeps a value calculated at generation unless the cell has moved on
+    // since (or a writer is changing its inputs)
+    private synchronized void publish(long generation, double value) {
+      if (changing == 0 && generation == this.generation) {
+        cachedValue = value;
+        calculated = generation;
       }
-      if (tokens[index].equals("*") || tokens[index].equals("/")) {
-        value = 2;
+    }
+
+    // returns the cells and ranges read by this cell's formula, as
+    // {startRow, startCol, endRow, endCol}
+    public List<int[]> getReferences() {
+      ArrayList<int[]> refs = new ArrayList<int[]>();
+      if (formula != null) {
+        for (int[] ref : formula.getReferences()) {
+          refs.add(new int[] { row + ref[0], col + ref[1], row + ref[2], col + ref[3] });
+        }
       }
-      if (tokens[index].equals("+") || tokens[index].equals("-")) {
-        value = 1;
+      return refs;
+    }
+  
+    // adds the cells read by this cell's formula whose values are out of
+    // date to dirty, so that CellEvaluator can bring them up to date first
+    void addDirtyPrecedents(List<NumberCell> dirty) {
+      if (formula == null) {
+        return;
       }
-
-      // gets the index with the greatest value (highest priority)
-      if (value > maxValue) {
-        maxValue = value;
-        highestIndex = index;
+      for (int[] ref : formula.getReferences()) {
+        GridBase.grid.addDirtyCells(row + ref[0], col + ref[1], row + ref[2], col + ref[3], dirty);
       }
     }
-    return highestIndex - 1;
-  }
-
-  // this method gets the column variable from an inputted cell location
-  private int getCol(String command) {
-    String alphabet = "ABCDEFGHIJKLMNOQRSTUVWXYZ";  
-    command = command.trim();
-    String colstr = command.toUpperCase().charAt(0) + "";
-    int col = alphabet.indexOf(colstr);
-    return col;
-  }
 
-  // this method gets the row number from an inputted cell location 
-  private int getRow(String command) {
-    command = command.trim();
-    String rowstr = command.charAt(1) + "";
-    int row = Integer.parseInt(rowstr) - 1;
-    return row;
-  }
+    // evaluates the formula and caches the result. CellEvaluator and the
+    // RecalcEngine only call this once every dirty cell the formula reads
+    // has been brought up to date, so reading them does not recurse. A
+    // cell without a formula is #VALUE!.
+    void calculate() {
+      long started = generation;
+      publish(started, formula == null ? ErrorValue.VALUE_ERROR : formula.run(row, col));
+    }
 
-  // is called when the user inputs the word sum and returns the 
-  // double value of the sum of the values in the range of
-  // cells inputted by the user
-  private double getRangeSum(String start, String end) {
-      start = start.trim();
-      end = end.trim();
-      int startRow = getRow(start);
-      int startCol = getCol(start);
-      int endRow = getRow(end);
-      int endCol = getCol(end);
-      double sum = 0;
-      for (int row = startRow; row <= endRow; row++) {
-        for (int col = startCol; col <= endCol; col++) {
-          if (matrix[row][col] != null) {
-            sum += matrix[row][col].getValue(); 
-          }
-        }
-      }
-      return sum;
+    // sets the cached value to an error without evaluating the formula.
+    // Like a calculated value, the error is only kept if the cell is still
+    // at generation, since a writer may have broken the cycle since.
+    void fail(long generation, double error) {
+      publish(generation, error);
     }
 
-  // is called when the user inputs the word avg and returns the 
-  // double value of the average of the values in the range of
-  // cells inputted by the user
-  private double getRangeAvg(String start, String end) {
-    start = start.trim();
-    end = end.trim();
-    int startRow = getRow(start);
-    int startCol = getCol(start);
-    int endRow = getRow(end);
-    int endCol = getCol(end);
-    double sum = 0;
-    int num = 0;
-    for (int row = startRow; row <= endRow; row++) {
-      for (int col = startCol; col <= endCol; col++) {
-        if (matrix[row][col] != null) {
-          sum += matrix[row][col].getValue();
+    /*
+     * This returns the string to be presented in the grid.
+     */  
+    public String toString() {
+        return ErrorValue.format(getValue());
+    }
+  
+    /*
+     * This will return the number for this cell. The formula that was
+     * compiled when the expression was set is only walked again when
+     * the cell is dirty; otherwise the cached value is returned. A dirty
+     * cell is brought up to date by CellEvaluator, which evaluates the
+     * dirty cells it reads first without recursing through them. If a
+     * writer changes one of the cells it reads in the meantime, the value
+     * is not kept and the cell is evaluated again once the writer is done.
+     * Writers only hold a cell back for as long as they take to store one
+     * cell, and never wait for a reader while they do.
+     */
+    public double getValue() {
+      if (formula == null) {
+        return 0.0;
+      }
+      while (isDirty()) {
+        CellEvaluator.evaluate(this);
+        if (isDirty()) {
+          Thread.onSpinWait();
         }
-        num++;
       }
+      return cachedValue;
     }
-    return sum / num;
-  }
-
 
 }
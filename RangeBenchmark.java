@@ -0,0 +1,86 @@
+import java.util.*;
+
+/*
+ * The RangeBenchmark times the ways the grid can add up a range of cells:
+ *
+ *     objects : the old nested for (row...) for (col...) loop calling
+ *               getValue() on a Cell[][] of NumberCells
+ *     scalar  : gathering the values from the CellStore into a double[]
+ *               and adding them with the scalar kernel
+ *     vector  : the same gather followed by the Vector API kernel
+ *
+ * It also times min and max with both kernels. Run it with
+ *     java --add-modules jdk.incubator.vector RangeBenchmark [rows] [cols]
+ * Without the module only the objects and scalar timings are shown.
+ */
+public class RangeBenchmark {
+
+  private static final int ROUNDS = 50;
+
+  public static void main(String[] args) {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int cols = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+    Random random = new Random(42);
+    Cell[][] matrix = new Cell[rows][cols];
+    CellStore store = new CellStore(rows, cols);
+    for (int row = 0; row < rows; row++) {
+      for (int col = 0; col < cols; col++) {
+        NumberCell cell = CellStore.numberCell(random.nextInt(2000000) / 100.0);
+        matrix[row][col] = cell;
+        store.set(row, col, cell, 1);
+      }
+    }
+    double[] buffer = new double[rows * cols];
+
+    System.out.println(rows + " x " + cols + " cells, best of " + ROUNDS + " rounds");
+    time("objects sum", () -> {
+      double sum = 0;
+      for (int row = 0; row < rows; row++) {
+        for (int col = 0; col < cols; col++) {
+          if (matrix[row][col] != null) {
+            sum += matrix[row][col].getValue();
+          }
+        }
+      }
+      return sum;
+    });
+    runKernels("scalar", RangeKernels.SCALAR, store, buffer, rows, cols);
+    RangeKernels vector = RangeKernels.vector();
+    if (vector == null) {
+      System.out.println("vector kernels not available (add --add-modules jdk.incubator.vector)");
+    } else {
+      runKernels(vector.getName(), vector, store, buffer, rows, cols);
+    }
+  }
+
+  // times the gather and each kernel
+  private static void runKernels(String name, RangeKernels kernels, CellStore store, double[] buffer,
+      int rows, int cols) {
+    time(name + " gather + sum", () -> {
+      int count = store.gatherNumbers(0, 0, rows - 1, cols - 1, buffer);
+      return kernels.sum(buffer, count);
+    });
+    int count = store.gatherNumbers(0, 0, rows - 1, cols - 1, buffer);
+    time(name + " sum", () -> kernels.sum(buffer, count));
+    time(name + " min", () -> kernels.min(buffer, count));
+    time(name + " max", () -> kernels.max(buffer, count));
+  }
+
+  // the work being timed; it returns its result so it cannot be optimized away
+  private interface Work {
+    double run();
+  }
+
+  // runs the work ROUNDS times and prints the fastest round
+  private static void time(String name, Work work) {
+    long best = Long.MAX_VALUE;
+    double result = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      result = work.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    System.out.printf("%-28s %10.3f ms   (result %.2f)%n", name, best / 1e6, result);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * The RangeIndex is an optional index over the values of the grid that
+ * answers "sum of this rectangle" in O(log rows * log cols) time instead of
+ * visiting every cell in the rectangle. It is a two dimensional Fenwick
+ * (binary indexed) tree. The Grid keeps it up to date by calling set()
+ * whenever the value of a cell changes.
+ *
+ * Because the sum of a rectangle is put together from prefix sums, the
+ * result can differ from adding the cells one at a time in the last few
+ * bits of a double. That is why the index is off unless it is turned on.
+ *
+ * An error or another value that is not finite would stay in every entry
+ * it was added to, since taking it out again (NaN - NaN, or infinity minus
+ * infinity) does not give back the sum without it. So such a value is kept
+ * out of the tree as 0, and a second tree counts the cells that hold one.
+ * sum() returns NaN for a rectangle that holds any of them, and the caller
+ * adds up the cells themselves instead.
+ *
+ * One set() changes many entries of the tree, and a sum taken halfway
+ * through would be neither the old sum nor the new one, so set() and sum()
+ * are synchronized. Both are short, and the index is only used while it is
+ * turned on.
+ */
+public class RangeIndex {
+
+  private final int rows;
+  private final int cols;
+
+  // the Fenwick tree, 1-based in both directions
+  private final double[][] tree;
+
+  // the Fenwick tree of the number of cells whose value is not finite
+  private final int[][] badCounts;
+
+  // the current value of every cell, used to work out the change on set()
+  private final double[][] values;
+
+  // creates an empty index for a grid of rows by cols cells
+  public RangeIndex(int rows, int cols) {
+    this.rows = rows;
+    this.cols = cols;
+    tree = new double[rows + 1][cols + 1];
+    badCounts = new int[rows + 1][cols + 1];
+    values = new double[rows][cols];
+  }
+
+  // returns the number of rows this index covers
+  public int getRows() {
+    return rows;
+  }
+
+  // returns the number of columns this index covers
+  public int getCols() {
+    return cols;
+  }
+
+  /*
+   * Sets the value of the cell at row, col.
+   *
+   * Parameters:
+   *    row, col : The location of the cell (0-based).
+   *    value    : The new value of the cell.
+   */
+  public synchronized void set(int row, int col, double value) {
+    double old = values[row][col];
+    if (Double.doubleToRawLongBits(old) == Double.doubleToRawLongBits(value)) {
+      return;
+    }
+    values[row][col] = value;
+    boolean wasFinite = Double.isFinite(old);
+    boolean isFinite = Double.isFinite(value);
+    if (wasFinite != isFinite) {
+      int change = isFinite ? -1 : 1;
+      for (int r = row + 1; r <= rows; r += r & -r) {
+        for (int c = col + 1; c <= cols; c += c & -c) {
+          badCounts[r][c] += change;
+        }
+      }
+    }
+    double delta = (isFinite ? value : 0) - (wasFinite ? old : 0);
+    if (delta == 0) {
+      return;
+    }
+    for (int r = row + 1; r <= rows; r += r & -r) {
+      for (int c = col + 1; c <= cols; c += c & -c) {
+        tree[r][c] += delta;
+      }
+    }
+  }
+
+  // returns the sum of the rectangle from (0, 0) to (row, col), inclusive
+  private double prefixSum(int row, int col) {
+    double sum = 0;
+    for (int r = row + 1; r > 0; r -= r & -r) {
+      for (int c = col + 1; c > 0; c -= c & -c) {
+        sum += tree[r][c];
+      }
+    }
+    return sum;
+  }
+
+  // returns the number of cells that are not finite in the rectangle from
+  // (0, 0) to (row, col), inclusive
+  private int prefixCount(int row, int col) {
+    int count = 0;
+    for (int r = row + 1; r > 0; r -= r & -r) {
+      for (int c = col + 1; c > 0; c -= c & -c) {
+        count += badCounts[r][c];
+      }
+    }
+    return count;
+  }
+
+  /*
+   * Returns the sum of the values in the rectangle from startRow, startCol to
+   * endRow, endCol, inclusive. The parts of the rectangle outside the index
+   * are left out, like CellStore.sum() leaves out the parts outside the
+   * sheet.
+   *
+   * Returns:
+   *    The sum, or NaN if a cell in the rectangle is an error or is not
+   *    finite.
+   */
+  public synchronized double sum(int startRow, int startCol, int endRow, int endCol) {
+    startRow = Math.max(startRow, 0);
+    startCol = Math.max(startCol, 0);
+    endRow = Math.min(endRow, rows - 1);
+    endCol = Math.min(endCol, cols - 1);
+    if (startRow > endRow || startCol > endCol) {
+      return 0;
+    }
+    int bad = prefixCount(endRow, endCol)
+        - prefixCount(startRow - 1, endCol)
+        - prefixCount(endRow, startCol - 1)
+        + prefixCount(startRow - 1, startCol - 1);
+    if (bad > 0) {
+      return Double.NaN;
+    }
+    return prefixSum(endRow, endCol)
+        - prefixSum(startRow - 1, endCol)
+        - prefixSum(endRow, startCol - 1)
+        + prefixSum(startRow - 1, startCol - 1);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * The RangeIndexTest runs the same sheets with the range index (see
+ * RangeIndex) turned on and off, and checks that sum and avg give the same
+ * results both ways:
+ *
+ *     recovered error : a cell that held #DIV/0! and then a number again,
+ *                       which used to leave NaN in the index for good
+ *     outside ranges  : ranges that reach past the last row or column,
+ *                       which the index used to read past its arrays for
+ *
+ * Run it with
+ *     java RangeIndexTest
+ * It exits with 1 if a value was wrong.
+ */
+public class RangeIndexTest {
+
+  private static int failures = 0;
+
+  public static void main(String[] args) {
+    for (String index : new String[] { "off", "on" }) {
+      recoveredError(index);
+      outsideRanges(index);
+    }
+
+    if (failures > 0) {
+      System.out.println(failures + " problems found");
+      System.exit(1);
+    }
+    System.out.println("all values right");
+  }
+
+  // a3 = ( 1 / b9 ) is #DIV/0! until b9 is set, and the sums over it
+  // follow it there and back
+  private static void recoveredError(String index) {
+    Grid grid = newGrid(index);
+    grid.processCommand("a1 = 3");
+    grid.processCommand("a2 = 4");
+    grid.processCommand("a3 = ( 1 / b9 )");
+    grid.processCommand("b5 = 2");
+    expect(grid, index, "sum a1 - a3", "#DIV/0!");
+    expect(grid, index, "sum b5 - b5", "2.0");
+    grid.processCommand("b9 = 4");
+    expect(grid, index, "sum a1 - a3", "7.25");
+    expect(grid, index, "sum b5 - b5", "2.0");
+    expect(grid, index, "avg a1 - a2", "3.5");
+    grid.processCommand("b9 = 0");
+    expect(grid, index, "sum a1 - a3", "#DIV/0!");
+    grid.processCommand("b9 = 2");
+    expect(grid, index, "sum a1 - a3", "7.5");
+  }
+
+  // on a grid of 10 rows and 7 columns, ranges that end past the grid add
+  // up the part inside it
+  private static void outsideRanges(String index) {
+    Grid grid = newGrid(index);
+    grid.processCommand("a1 = 1");
+    grid.processCommand("a10 = 2");
+    grid.processCommand("g10 = 4");
+    grid.processCommand("b1 = ( sum a1 - a20 )");
+    expect(grid, index, "value b1", "3.0");
+    grid.processCommand("c1 = ( sum e1 - k15 )");
+    expect(grid, index, "value c1", "4.0");
+    expect(grid, index, "sum a11 - a20", "0.0");
+  }
+
+  // returns a new grid of the default size with the index on or off
+  private static Grid newGrid(String index) {
+    Grid grid = new Grid();
+    GridBase.grid = grid;
+    grid.processCommand("calc index = " + index);
+    return grid;
+  }
+
+  private static void expect(Grid grid, String index, String command, String expected) {
+    String result;
+    try {
+      result = grid.processCommand(command);
+    } catch (RuntimeException e) {
+      result = e.toString();
+    }
+    if (!result.equals(expected)) {
+      failures++;
+      System.out.println("index " + index + ": " + command + " is " + result + " instead of " + expected);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * The RangeKernels add up, and find the smallest and largest of, the values
+ * of a range of cells once they have been gathered into a double[] buffer
+ * (see CellStore.gatherNumbers). This class holds the plain scalar loops;
+ * VectorKernels overrides them with loops over the Java Vector API, which
+ * work on several doubles per instruction.
+ *
+ * The Vector API is an incubator module, so it is only there when the
+ * program is started with --add-modules jdk.incubator.vector. vector()
+ * returns null when it is missing and the grid keeps using the scalar loops.
+ */
+public class RangeKernels {
+
+  // the scalar kernels, which are always available
+  public static final RangeKernels SCALAR = new RangeKernels();
+
+  private static RangeKernels vector = null;
+  private static boolean vectorChecked = false;
+
+  /*
+   * Returns the vectorized kernels, or null if the Vector API is not
+   * available. VectorKernels is loaded by name so that nothing touches the
+   * incubator module unless it is asked for.
+   */
+  public static synchronized RangeKernels vector() {
+    if (!vectorChecked) {
+      vectorChecked = true;
+      try {
+        vector = (RangeKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        vector = null;
+      }
+    }
+    return vector;
+  }
+
+  // returns a short name for these kernels
+  public String getName() {
+    return "scalar";
+  }
+
+  // returns the sum of the first count values, added from first to last
+  public double sum(double[] values, int count) {
+    double sum = 0;
+    for (int index = 0; index < count; index++) {
+      sum += values[index];
+    }
+    return sum;
+  }
+
+  // returns the smallest of the first count values, or 0.0 if count is 0
+  public double min(double[] values, int count) {
+    if (count == 0) {
+      return 0.0;
+    }
+    double min = values[0];
+    for (int index = 1; index < count; index++) {
+      min = Math.min(min, values[index]);
+    }
+    return min;
+  }
+
+  // returns the largest of the first count values, or 0.0 if count is 0
+  public double max(double[] values, int count) {
+    if (count == 0) {
+      return 0.0;
+    }
+    double max = values[0];
+    for (int index = 1; index < count; index++) {
+      max = Math.max(max, values[index]);
+    }
+    return max;
+  }
+}
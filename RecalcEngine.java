@@ -0,0 +1,410 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * The RecalcEngine recalculates the dirty formula cells of the Grid. Rather
+ * than letting every getValue() recurse through the cells it references, it
+ * sorts the dirty cells into levels using the DependencyGraph: a cell is put
+ * in a level after every dirty cell it reads has been put in an earlier
+ * level. All the cells in one level are independent of each other, so a
+ * level is evaluated in parallel on a ForkJoinPool before moving on to the
+ * next one.
+ *
+ * Cells that are part of a circular reference never reach an in-degree of
+ * zero, so they are left dirty and evaluated on demand by CellEvaluator,
+ * which sets them to #CYCLE!.
+ *
+ * Writers on different threads may each run a recalculation at the same
+ * time. Each one works on the cells it took from the Grid's queue, and a
+ * cell that both of them evaluate simply keeps the value that was worked
+ * out last from up to date inputs (see NumberCell).
+ */
+public class RecalcEngine {
+
+  // levels with fewer cells than this are evaluated on the calling thread,
+  // because handing them to the pool costs more than it saves
+  private static final int PARALLEL_THRESHOLD = 64;
+
+  // the number of cells one task evaluates before it stops splitting
+  private static final int CHUNK_SIZE = 32;
+
+  private volatile int threads;
+  private ForkJoinPool pool = null;
+
+  // creates an engine that uses one thread per available processor
+  public RecalcEngine() {
+    threads = Runtime.getRuntime().availableProcessors();
+  }
+
+  // returns the number of threads used to evaluate a level
+  public int getThreads() {
+    return threads;
+  }
+
+  // sets the number of threads used to evaluate a level; 1 means
+  // everything is evaluated on the calling thread
+  public synchronized void setThreads(int threads) {
+    if (threads < 1) {
+      threads = 1;
+    }
+    if (threads != this.threads && pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    this.threads = threads;
+  }
+
+  /*
+   * Recalculates every dirty cell in keys, in dependency order.
+   *
+   * Parameters:
+   *    keys  : The keys (see DependencyGraph.key) of the cells to recalculate.
+   *    graph : The dependency graph of the grid.
+   *    grid  : The grid that holds the cells.
+   */
+  public void recalculate(Collection<Long> keys, DependencyGraph graph, Grid grid) {
+    if (keys.isEmpty()) {
+      return;
+    }
+    // log, sqrt and ^ results are shared for as long as the pass runs
+    SubexpressionCache.beginPass();
+    try {
+      evaluateInOrder(keys, graph, grid);
+    } finally {
+      SubexpressionCache.endPass();
+    }
+  }
+
+  /*
+   * Sorts the dirty cells into levels and evaluates them level by level.
+   *
+   * A formula only has to wait for the dirty formulas it reads, but a
+   * range like sum b1 - b20000 can hold thousands of them, and a column of
+   * such ranges would need a waiting edge for every pair. So the dirty
+   * formulas of each column are put in order of their rows and become the
+   * leaves of a segment tree, in which every node stands for the leaves
+   * below it and is done once its children are. A range then waits for
+   * the few tree nodes that cover the dirty formulas inside it (at most
+   * two per level of the tree) rather than for each of them.
+   */
+  private void evaluateInOrder(Collection<Long> keys, DependencyGraph graph, Grid grid) {
+    // the dirty formulas that read other cells take part in the ordering;
+    // the other cells are done before the first level, except for numbers,
+    // which have nothing to work out (a plain number is even a new cell
+    // built just to be read)
+    ArrayList<Long> ordered = new ArrayList<Long>();
+    ArrayList<NumberCell> first = new ArrayList<NumberCell>();
+    ArrayList<Long> firstKeys = new ArrayList<Long>();
+    for (long key : keys) {
+      Cell cell = grid.getCell(DependencyGraph.row(key), DependencyGraph.col(key));
+      if (cell instanceof NumberCell && ((NumberCell) cell).isDirty() && graph.getPrecedents(key) != null) {
+        ordered.add(key);
+      } else {
+        if (cell instanceof NumberCell && !(((NumberCell) cell).getFormula() instanceof Formula.Constant)) {
+          first.add((NumberCell) cell);
+        }
+        firstKeys.add(key);
+      }
+    }
+    evaluateLevel(first);
+    for (long key : firstKeys) {
+      grid.valueChanged(DependencyGraph.row(key), DependencyGraph.col(key));
+    }
+    if (ordered.isEmpty()) {
+      return;
+    }
+    LevelTrees trees = new LevelTrees(ordered);
+    for (int node = 0; node < trees.size(); node++) {
+      trees.addPrecedents(node, graph.getPrecedents(trees.key(node)));
+    }
+
+    // the first level is every formula that waits for nothing
+    ArrayList<Integer> levelNodes = new ArrayList<Integer>();
+    for (int node = 0; node < trees.size(); node++) {
+      if (trees.isReady(node)) {
+        levelNodes.add(node);
+      }
+    }
+    ArrayList<NumberCell> level = new ArrayList<NumberCell>();
+    while (!levelNodes.isEmpty()) {
+      level.clear();
+      for (int node : levelNodes) {
+        long key = trees.key(node);
+        Cell cell = grid.getCell(DependencyGraph.row(key), DependencyGraph.col(key));
+        if (cell instanceof NumberCell) {
+          level.add((NumberCell) cell);
+        }
+      }
+      evaluateLevel(level);
+      ArrayList<Integer> nextNodes = new ArrayList<Integer>();
+      for (int node : levelNodes) {
+        long key = trees.key(node);
+        grid.valueChanged(DependencyGraph.row(key), DependencyGraph.col(key));
+        trees.done(node, nextNodes);
+      }
+      levelNodes = nextNodes;
+    }
+  }
+
+  /*
+   * The segment trees that order one recalculation (see evaluateInOrder).
+   * The formulas are numbered 0 to size() - 1 in column and then row order.
+   * Column j has a tree of 2 * width[j] nodes numbered from offset[j], where
+   * node 1 is the root, node v has children 2v and 2v + 1, and the leaves
+   * are width[j] to 2 * width[j] - 1. waiting holds, for every tree node,
+   * how many things it still waits for: the tree nodes its range reads for
+   * a leaf, and its children that hold formulas for any other node.
+   */
+  private static final class LevelTrees {
+    private final long[] keys;
+    private final int[] columns;     // the column of each tree
+    private final int[] firstNode;   // the first formula of each tree
+    private final int[] offset;
+    private final int[] width;
+    private final int[] treeOf;      // the tree of each formula
+    private final int[] waiting;
+
+    // the readers waiting for each tree node, as linked lists of edges
+    private final int[] head;
+    private int[] nextEdge = new int[64];
+    private int[] reader = new int[64];
+    private int edges = 0;
+
+    LevelTrees(ArrayList<Long> formulas) {
+      keys = new long[formulas.size()];
+      for (int index = 0; index < keys.length; index++) {
+        long key = formulas.get(index);
+        keys[index] = ((long) DependencyGraph.col(key) << 32) | DependencyGraph.row(key);
+      }
+      Arrays.sort(keys);
+      for (int index = 0; index < keys.length; index++) {
+        keys[index] = DependencyGraph.key((int) keys[index], (int) (keys[index] >> 32));
+      }
+
+      int trees = 0;
+      for (int index = 0; index < keys.length; index++) {
+        if (index == 0 || DependencyGraph.col(keys[index]) != DependencyGraph.col(keys[index - 1])) {
+          trees++;
+        }
+      }
+      columns = new int[trees];
+      firstNode = new int[trees + 1];
+      offset = new int[trees];
+      width = new int[trees];
+      treeOf = new int[keys.length];
+      int tree = -1;
+      for (int index = 0; index < keys.length; index++) {
+        if (index == 0 || DependencyGraph.col(keys[index]) != DependencyGraph.col(keys[index - 1])) {
+          tree++;
+          columns[tree] = DependencyGraph.col(keys[index]);
+          firstNode[tree] = index;
+        }
+        treeOf[index] = tree;
+      }
+      firstNode[trees] = keys.length;
+      int total = 0;
+      for (tree = 0; tree < trees; tree++) {
+        int count = firstNode[tree + 1] - firstNode[tree];
+        width[tree] = Integer.highestOneBit(Math.max(count - 1, 1)) << 1;
+        offset[tree] = total;
+        total += 2 * width[tree];
+      }
+
+      // every node above the leaves waits for its children that hold formulas
+      waiting = new int[total];
+      head = new int[total];
+      Arrays.fill(head, -1);
+      for (tree = 0; tree < trees; tree++) {
+        int count = firstNode[tree + 1] - firstNode[tree];
+        boolean[] holds = new boolean[2 * width[tree]];
+        for (int leaf = 0; leaf < count; leaf++) {
+          holds[width[tree] + leaf] = true;
+        }
+        for (int node = width[tree] - 1; node >= 1; node--) {
+          holds[node] = holds[2 * node] || holds[2 * node + 1];
+          waiting[offset[tree] + node] = (holds[2 * node] ? 1 : 0) + (holds[2 * node + 1] ? 1 : 0);
+        }
+      }
+    }
+
+    // returns the number of formulas
+    int size() {
+      return keys.length;
+    }
+
+    // returns the key of a formula
+    long key(int node) {
+      return keys[node];
+    }
+
+    // returns true if the formula waits for nothing
+    boolean isReady(int node) {
+      return waiting[leaf(node)] == 0;
+    }
+
+    // returns the tree node that is the leaf of a formula
+    private int leaf(int node) {
+      int tree = treeOf[node];
+      return offset[tree] + width[tree] + node - firstNode[tree];
+    }
+
+    /*
+     * Makes the formula wait for the dirty formulas in the references it
+     * reads, as {startRow, startCol, endRow, endCol}. A formula that reads
+     * itself does not wait for itself; evaluating it finds the cycle.
+     */
+    void addPrecedents(int node, List<int[]> refs) {
+      int ownCol = DependencyGraph.col(keys[node]);
+      int ownLeaf = node - firstNode[treeOf[node]];
+      for (int[] ref : refs) {
+        int tree = firstTree(ref[1]);
+        for (; tree < columns.length && columns[tree] <= ref[3]; tree++) {
+          int start = firstLeaf(tree, ref[0]);
+          int end = firstLeaf(tree, ref[2] + 1) - 1;
+          if (columns[tree] == ownCol && start <= ownLeaf && ownLeaf <= end) {
+            waitFor(node, tree, start, ownLeaf - 1);
+            waitFor(node, tree, ownLeaf + 1, end);
+          } else {
+            waitFor(node, tree, start, end);
+          }
+        }
+      }
+    }
+
+    // makes the formula wait for the tree nodes that cover the leaves from
+    // start to end (inclusive) of a tree
+    private void waitFor(int node, int tree, int start, int end) {
+      int waiter = leaf(node);
+      int low = start + width[tree];
+      int high = end + width[tree] + 1;
+      while (low < high) {
+        if ((low & 1) == 1) {
+          addEdge(offset[tree] + low++, node);
+          waiting[waiter]++;
+        }
+        if ((high & 1) == 1) {
+          addEdge(offset[tree] + --high, node);
+          waiting[waiter]++;
+        }
+        low >>= 1;
+        high >>= 1;
+      }
+    }
+
+    // records that the formula waits for a tree node
+    private void addEdge(int treeNode, int node) {
+      if (edges == reader.length) {
+        nextEdge = Arrays.copyOf(nextEdge, edges * 2);
+        reader = Arrays.copyOf(reader, edges * 2);
+      }
+      reader[edges] = node;
+      nextEdge[edges] = head[treeNode];
+      head[treeNode] = edges++;
+    }
+
+    // returns the first tree whose column is at least col
+    private int firstTree(int col) {
+      int low = 0;
+      int high = columns.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (columns[middle] < col) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    // returns the first leaf of a tree whose row is at least row
+    private int firstLeaf(int tree, int row) {
+      int low = firstNode[tree];
+      int high = firstNode[tree + 1];
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (DependencyGraph.row(keys[middle]) < row) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low - firstNode[tree];
+    }
+
+    // marks a formula as evaluated: the nodes above it that have nothing
+    // left to wait for are done too, and every formula that no longer waits
+    // for anything is added to ready
+    void done(int node, List<Integer> ready) {
+      int tree = treeOf[node];
+      int local = width[tree] + node - firstNode[tree];
+      while (true) {
+        for (int edge = head[offset[tree] + local]; edge != -1; edge = nextEdge[edge]) {
+          int waiter = reader[edge];
+          if (--waiting[leaf(waiter)] == 0) {
+            ready.add(waiter);
+          }
+        }
+        if (local == 1 || --waiting[offset[tree] + (local >> 1)] != 0) {
+          return;
+        }
+        local >>= 1;
+      }
+    }
+  }
+
+  // evaluates every cell of one level, in parallel when it is big enough
+  private void evaluateLevel(List<NumberCell> level) {
+    if (threads == 1 || level.size() < PARALLEL_THRESHOLD) {
+      for (NumberCell cell : level) {
+        calculate(cell);
+      }
+      return;
+    }
+    getPool().invoke(new EvaluateTask(level, 0, level.size()));
+  }
+
+  // evaluates a queued cell unless it is already up to date, which is the
+  // case for a formula that was only moved (by sortrows, for example) and
+  // still reads the same cells
+  private static void calculate(NumberCell cell) {
+    if (cell.isDirty()) {
+      cell.calculate();
+    }
+  }
+
+  // creates the pool the first time it is needed
+  private synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(threads);
+    }
+    return pool;
+  }
+
+  // evaluates the cells from start (inclusive) to end (exclusive) of a level,
+  // splitting the work in half until it is small enough
+  private static class EvaluateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<NumberCell> cells;
+    private final int start;
+    private final int end;
+
+    EvaluateTask(List<NumberCell> cells, int start, int end) {
+      this.cells = cells;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void compute() {
+      if (end - start <= CHUNK_SIZE) {
+        for (int index = start; index < end; index++) {
+          calculate(cells.get(index));
+        }
+        return;
+      }
+      int middle = (start + end) / 2;
+      invokeAll(new EvaluateTask(cells, start, middle), new EvaluateTask(cells, middle, end));
+    }
+  }
+}
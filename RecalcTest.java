@@ -0,0 +1,158 @@
+import java.util.*;
+
+/*
+ * The RecalcTest builds the sheets that used to make changing or
+ * recalculating the grid slow, times them, and checks their values:
+ *
+ *     running total : a column of a2 = ( a1 + b2 ) formulas set before
+ *                     the numbers they add up, which used to walk the
+ *                     whole rest of the column for every number written
+ *     running sum   : a column of aN = ( sum c1 - cN ) formulas over a
+ *                     column of cN = ( bN ) formulas, which used to give
+ *                     every sum a waiting edge per formula in its range
+ *     loaded sums   : a bulk load of aN = ( sum b1 - bN ) followed by the
+ *                     numbers, which used to walk the readers of every
+ *                     number as it was loaded
+ *     sorted rows   : sortrows over rows of a number and formulas that
+ *                     read it, whose formulas used to keep reading the
+ *                     rows they were set in after being moved
+ *
+ * Run it with
+ *     java RecalcTest [rows]
+ * It prints how long each case took and exits with 1 if a value was wrong.
+ */
+public class RecalcTest {
+
+  private static int failures = 0;
+
+  public static void main(String[] args) {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+    runningTotal(rows);
+    runningSum(rows);
+    loadedSums(rows);
+    sortedRows(rows);
+
+    if (failures > 0) {
+      System.out.println(failures + " problems found");
+      System.exit(1);
+    }
+    System.out.println("all values right");
+  }
+
+  // a1 = b1 and aN = ( aN-1 + bN ) are set first, then bN = N is written
+  // down the column without recalculating in between, as a load would
+  private static void runningTotal(int rows) {
+    Grid grid = new Grid();
+    grid.processCommand("rows = " + rows);
+    grid.beginBulkLoad();
+    grid.processCommand("a1 = ( b1 )");
+    for (int row = 2; row <= rows; row++) {
+      grid.processCommand("a" + row + " = ( a" + (row - 1) + " + b" + row + " )");
+    }
+    long began = System.nanoTime();
+    for (int row = 1; row <= rows; row++) {
+      grid.processCommand("b" + row + " = " + row);
+    }
+    long written = System.nanoTime();
+    grid.endBulkLoad();
+    report("running total", rows, began, written);
+
+    expect(grid, "a1", 1);
+    expect(grid, "a" + rows, (double) rows * (rows + 1) / 2);
+  }
+
+  // cN = ( bN ) and aN = ( sum c1 - cN ) are set first, then bN = N is
+  // written down the column, so the recalculation has to order every sum
+  // after all the formulas in its range
+  private static void runningSum(int rows) {
+    Grid grid = new Grid();
+    grid.processCommand("rows = " + rows);
+    grid.beginBulkLoad();
+    for (int row = 1; row <= rows; row++) {
+      grid.processCommand("c" + row + " = ( b" + row + " )");
+      grid.processCommand("a" + row + " = ( sum c1 - c" + row + " )");
+    }
+    long began = System.nanoTime();
+    for (int row = 1; row <= rows; row++) {
+      grid.processCommand("b" + row + " = " + row);
+    }
+    long written = System.nanoTime();
+    grid.endBulkLoad();
+    report("running sum", rows, began, written);
+
+    expect(grid, "a1", 1);
+    expect(grid, "a" + (rows / 2), (double) (rows / 2) * (rows / 2 + 1) / 2);
+    expect(grid, "a" + rows, (double) rows * (rows + 1) / 2);
+  }
+
+  // aN = ( sum b1 - bN ) and then bN = N are loaded, so every number is
+  // read by all the sums below it
+  private static void loadedSums(int rows) {
+    Grid grid = new Grid();
+    grid.processCommand("rows = " + rows);
+    long began = System.nanoTime();
+    grid.beginBulkLoad();
+    for (int row = 1; row <= rows; row++) {
+      grid.processCommand("a" + row + " = ( sum b1 - b" + row + " )");
+    }
+    for (int row = 1; row <= rows; row++) {
+      grid.processCommand("b" + row + " = " + row);
+    }
+    long written = System.nanoTime();
+    grid.endBulkLoad();
+    report("loaded sums", rows, began, written);
+
+    expect(grid, "a1", 1);
+    expect(grid, "a" + rows, (double) rows * (rows + 1) / 2);
+  }
+
+  // aN is a shuffled number, bN = ( aN * 10 ), cN = ( sum aN - bN ) and
+  // dN = ( aN + e1 ) with e1 outside the sorted range; after sorting the
+  // rows by a, every formula still reads its own row and e1
+  private static void sortedRows(int rows) {
+    Grid grid = new Grid();
+    grid.processCommand("rows = " + rows);
+    grid.beginBulkLoad();
+    grid.processCommand("e1 = 7");
+    for (int row = 1; row <= rows; row++) {
+      grid.processCommand("a" + row + " = " + (row * 7919L % rows));
+      grid.processCommand("b" + row + " = ( a" + row + " * 10 )");
+      grid.processCommand("c" + row + " = ( sum a" + row + " - b" + row + " )");
+      grid.processCommand("d" + row + " = ( a" + row + " + e1 )");
+    }
+    grid.endBulkLoad();
+    long began = System.nanoTime();
+    grid.processCommand("sortrows a1 - d" + rows + " by a asc");
+    long written = System.nanoTime();
+    report("sorted rows", rows, began, written);
+
+    double previous = -1;
+    for (int row = 1; row <= rows; row++) {
+      double value = Double.parseDouble(grid.processCommand("value a" + row));
+      if (value < previous) {
+        failures++;
+        System.out.println("a" + row + " is " + value + ", less than the row above");
+      }
+      previous = value;
+      expect(grid, "b" + row, value * 10);
+      expect(grid, "c" + row, value * 11);
+      expect(grid, "d" + row, value + 7);
+    }
+  }
+
+  // prints how long the writes and the recalculation after them took
+  private static void report(String name, int rows, long began, long written) {
+    long done = System.nanoTime();
+    System.out.printf("%-16s %7d rows   writes %8.1f ms   recalc %8.1f ms%n", name, rows,
+        (written - began) / 1e6, (done - written) / 1e6);
+  }
+
+  private static void expect(Grid grid, String cell, double expected) {
+    double value = Double.parseDouble(grid.processCommand("value " + cell));
+    if (value != expected) {
+      failures++;
+      System.out.println(cell + " is " + value + " instead of " + expected);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+import java.util.*;
+
+/*
+ * Selection finds the largest or smallest few values, or the value at one
+ * position in sorted order, among the values of a range once they have been
+ * gathered into a double[] buffer (see CellStore.gatherNumbers), without
+ * sorting the whole buffer.
+ *
+ *     largest(), smallest() : a heap that holds at most k values, so the
+ *                             k values are found in O(n log k) time
+ *     select(), median()    : quickselect, which partitions the buffer
+ *                             around a pivot and only carries on into the
+ *                             part that holds the position, in O(n) time
+ *
+ * select() and median() reorder the buffer they are given. None of them
+ * look for errors; the caller checks the values first.
+ */
+public class Selection {
+
+  /*
+   * Finds the k largest of the first count values.
+   *
+   * Returns:
+   *    The values, from the largest to the smallest. There are fewer than
+   *    k of them when count is less than k.
+   */
+  public static double[] largest(double[] values, int count, int k) {
+    // a min-heap of the largest values seen so far, whose top is the
+    // value to drop when a larger one comes along
+    int size = Math.min(k, count);
+    double[] heap = Arrays.copyOf(values, size);
+    buildHeap(heap);
+    for (int index = size; index < count; index++) {
+      if (size > 0 && values[index] > heap[0]) {
+        heap[0] = values[index];
+        siftDown(heap, 0, size);
+      }
+    }
+    drain(heap);
+    return heap;
+  }
+
+  /*
+   * Finds the k smallest of the first count values.
+   *
+   * Returns:
+   *    The values, from the smallest to the largest. There are fewer than
+   *    k of them when count is less than k.
+   */
+  public static double[] smallest(double[] values, int count, int k) {
+    // a max-heap of the smallest values seen so far, kept as a min-heap
+    // of their negatives
+    int size = Math.min(k, count);
+    double[] heap = new double[size];
+    for (int index = 0; index < size; index++) {
+      heap[index] = -values[index];
+    }
+    buildHeap(heap);
+    for (int index = size; index < count; index++) {
+      if (size > 0 && -values[index] > heap[0]) {
+        heap[0] = -values[index];
+        siftDown(heap, 0, size);
+      }
+    }
+    drain(heap);
+    for (int index = 0; index < size; index++) {
+      heap[index] = -heap[index];
+    }
+    return heap;
+  }
+
+  /*
+   * Finds the value that would be at position in the first count values if
+   * they were sorted from smallest to largest, so 0 is the smallest.
+   *
+   * Afterwards every value before position is no larger than it and every
+   * value after it is no smaller.
+   */
+  public static double select(double[] values, int count, int position) {
+    int low = 0;
+    int high = count - 1;
+    // after this many rounds the pivots are working out badly, and the
+    // part that is left is simply sorted, which bounds the worst case; a
+    // part of three values or fewer is sorted straight away
+    int rounds = 2 * (32 - Integer.numberOfLeadingZeros(count));
+    while (high > low) {
+      if (rounds-- == 0 || high - low < 3) {
+        Arrays.sort(values, low, high + 1);
+        break;
+      }
+      int middle = partition(values, low, high);
+      if (position < middle) {
+        high = middle - 1;
+      } else if (position > middle) {
+        low = middle + 1;
+      } else {
+        break;
+      }
+    }
+    return values[position];
+  }
+
+  /*
+   * Finds the median of the first count values: the middle value, or the
+   * average of the two middle values when count is even.
+   *
+   * Returns:
+   *    The median, or 0.0 if count is 0.
+   */
+  public static double median(double[] values, int count) {
+    if (count == 0) {
+      return 0.0;
+    }
+    double upper = select(values, count, count / 2);
+    if (count % 2 == 1) {
+      return upper;
+    }
+    // the lower middle value is the largest of the values before it
+    double lower = values[0];
+    for (int index = 1; index < count / 2; index++) {
+      lower = Math.max(lower, values[index]);
+    }
+    return (lower + upper) / 2;
+  }
+
+  // partitions values from low to high (inclusive, at least four values)
+  // around the median of the first, middle and last values, and returns
+  // where that pivot ends up
+  private static int partition(double[] values, int low, int high) {
+    int middle = (low + high) >>> 1;
+    if (values[middle] < values[low]) {
+      swap(values, middle, low);
+    }
+    if (values[high] < values[low]) {
+      swap(values, high, low);
+    }
+    if (values[high] < values[middle]) {
+      swap(values, high, middle);
+    }
+    // the pivot waits at high - 1 while the rest is partitioned
+    double pivot = values[middle];
+    swap(values, middle, high - 1);
+    int left = low;
+    int right = high - 1;
+    while (true) {
+      while (values[++left] < pivot) {
+      }
+      while (right > low && pivot < values[--right]) {
+      }
+      if (left >= right) {
+        break;
+      }
+      swap(values, left, right);
+    }
+    swap(values, left, high - 1);
+    return left;
+  }
+
+  private static void swap(double[] values, int first, int second) {
+    double value = values[first];
+    values[first] = values[second];
+    values[second] = value;
+  }
+
+  // turns the array into a min-heap
+  private static void buildHeap(double[] heap) {
+    for (int index = heap.length / 2 - 1; index >= 0; index--) {
+      siftDown(heap, index, heap.length);
+    }
+  }
+
+  // moves the value at index down until neither child is smaller
+  private static void siftDown(double[] heap, int index, int size) {
+    double value = heap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1] < heap[child]) {
+        child++;
+      }
+      if (heap[child] >= value) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = value;
+  }
+
+  // empties the heap by moving its top to the end over and over, which
+  // leaves the array sorted from largest to smallest
+  private static void drain(double[] heap) {
+    for (int size = heap.length - 1; size > 0; size--) {
+      double top = heap[0];
+      heap[0] = heap[size];
+      heap[size] = top;
+      siftDown(heap, 0, size);
+    }
+  }
+}
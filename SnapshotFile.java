@@ -0,0 +1,230 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/*
+ * The SnapshotFile saves and loads the whole grid in a binary form. Text
+ * saves write one command per cell that has to be parsed again on load; a
+ * snapshot instead stores every cell as a type tag and its already parsed
+ * contents, so loading it never goes through the command parser, the
+ * lexer or the formula parser.
+ *
+ * The file is written through a FileChannel and read back through a
+ * MappedByteBuffer. Its layout (all numbers big-endian) is:
+ *
+ *     header : "TXLS" magic, format version (int),
+ *              rows, cols, width, cell count (ints)
+ *     cells  : row, col (ints), type tag (byte), then by tag
+ *              NUMBER  : expression (string), value (double)
+ *              FORMULA : expression (string), formula (see Formula.save)
+ *              TEXT    : expression (string)
+ *              DATE    : expression (string)
+ *
+ * A string is its length (int) followed by its UTF-16 chars.
+ */
+public class SnapshotFile {
+
+  // files with this extension are saved and loaded as snapshots
+  public static final String EXTENSION = ".bin";
+
+  private static final int MAGIC = ('T' << 24) | ('X' << 16) | ('L' << 8) | 'S';
+  private static final int FORMAT_VERSION = 1;
+
+  // where the cell count is in the header
+  private static final long COUNT_POSITION = 20;
+
+  // the type tags of the cells
+  private static final byte NUMBER = 1;
+  private static final byte FORMULA = 2;
+  private static final byte TEXT = 3;
+  private static final byte DATE = 4;
+
+  // returns true if the file should be saved and loaded as a snapshot
+  public static boolean isSnapshot(String filename) {
+    return filename.toLowerCase().endsWith(EXTENSION);
+  }
+
+  /*
+   * Writes every cell of the grid to a snapshot file.
+   *
+   * Parameters:
+   *    grid     : The grid to save.
+   *    filename : The file to write.
+   */
+  public static void save(Grid grid, String filename) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(grid.getRowCount());
+      out.writeInt(grid.getColCount());
+      out.writeInt(grid.getCellWidth());
+      out.writeInt(0);
+
+      // the cells are written in one pass over the stored ones, and their
+      // count is filled in afterwards. Plain numbers come straight from the
+      // store's double blocks, without a cell being built for them.
+      int[] count = {0};
+      try {
+        grid.forEachCell((row, col, cell) -> {
+          try {
+            out.writeInt(row);
+            out.writeInt(col);
+            writeCell(out, cell);
+            count[0]++;
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }, (row, col, value) -> {
+          try {
+            out.writeInt(row);
+            out.writeInt(col);
+            writeNumber(out, value);
+            count[0]++;
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      out.flush();
+      channel.write(ByteBuffer.allocate(4).putInt(0, count[0]), COUNT_POSITION);
+    }
+  }
+
+  // writes the type tag and contents of a plain number, whose expression
+  // is the one CellStore.numberCell() gives it
+  private static void writeNumber(DataOutputStream out, double value) throws IOException {
+    String text = CellStore.numberText(value);
+    out.writeByte(NUMBER);
+    out.writeInt(text.length() + 1);
+    out.writeChar(' ');
+    out.writeChars(text);
+    out.writeDouble(value);
+  }
+
+  // writes the type tag and contents of one cell
+  private static void writeCell(DataOutputStream out, Cell cell) throws IOException {
+    if (cell instanceof NumberCell) {
+      Formula formula = ((NumberCell) cell).getFormula();
+      if (formula == null || formula instanceof Formula.Constant) {
+        out.writeByte(NUMBER);
+        writeString(out, cell.getExpression());
+        out.writeDouble(cell.getValue());
+      } else {
+        out.writeByte(FORMULA);
+        writeString(out, cell.getExpression());
+        NumberCell number = (NumberCell) cell;
+        formula.save(out, number.getAnchorRow(), number.getAnchorCol());
+      }
+    } else if (cell instanceof TextCell) {
+      out.writeByte(TEXT);
+      writeString(out, cell.getExpression());
+    } else {
+      out.writeByte(DATE);
+      writeString(out, cell.getExpression());
+    }
+  }
+
+  /*
+   * Replaces the contents of the grid with a snapshot file.
+   *
+   * Parameters:
+   *    grid     : The grid to load into.
+   *    filename : The file to read.
+   * Returns:
+   *    The number of cells loaded.
+   * Throws:
+   *    IOException if the file cannot be read or is not a snapshot.
+   */
+  public static int load(Grid grid, String filename) throws IOException {
+    MappedByteBuffer in;
+    try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      if (in.getInt() != MAGIC) {
+        throw new IOException(filename + " is not a snapshot file");
+      }
+      if (in.getInt() != FORMAT_VERSION) {
+        throw new IOException(filename + " was written by a different version");
+      }
+      int rows = in.getInt();
+      int cols = in.getInt();
+      int width = in.getInt();
+      int count = in.getInt();
+
+      grid.clear();
+      grid.resize(rows, cols);
+      grid.property("width", width + "");
+      for (int index = 0; index < count; index++) {
+        int row = in.getInt();
+        int col = in.getInt();
+        Cell cell = readCell(in, row, col);
+        if (cell == null) {
+          throw new IOException(filename + " has a damaged cell at row " + (row + 1));
+        }
+        if (row < grid.getRowCount() && col < grid.getColCount()) {
+          grid.setCell(row, col, cell);
+        }
+      }
+      grid.recalculate();
+      return count;
+    } catch (BufferUnderflowException e) {
+      throw new IOException(filename + " is cut short");
+    }
+  }
+
+  // reads the type tag and contents of the cell at row, col, or returns
+  // null if the tag is unknown
+  private static Cell readCell(ByteBuffer in, int row, int col) {
+    byte tag = in.get();
+    String expression = readString(in);
+    Cell cell;
+    switch (tag) {
+      case NUMBER: {
+        NumberCell number = new NumberCell();
+        number.setFormula(expression, new Formula.Constant(in.getDouble()));
+        return number;
+      }
+      case FORMULA: {
+        Formula formula = Formula.load(in, row, col);
+        if (formula == null) {
+          return null;
+        }
+        NumberCell number = new NumberCell();
+        number.setFormula(expression, formula, row, col);
+        return number;
+      }
+      case TEXT:
+        cell = new TextCell();
+        break;
+      case DATE:
+        cell = new DateCell();
+        break;
+      default:
+        return null;
+    }
+    cell.setExpression(expression);
+    return cell;
+  }
+
+  // writes the length of s followed by its chars
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeInt(s.length());
+    out.writeChars(s);
+  }
+
+  // reads a string written by writeString()
+  private static String readString(ByteBuffer in) {
+    char[] chars = new char[in.getInt()];
+    for (int index = 0; index < chars.length; index++) {
+      chars[index] = in.getChar();
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,181 @@
+import java.util.*;
+
+/*
+ * SortKeys sorts cells by keys that are read from each cell exactly once.
+ * Sorting a list of cells with compareTo() would call getValue() twice for
+ * every comparison, so a formula would be evaluated O(n log n) times.
+ * Instead rank() reads every key once into primitive arrays and turns it
+ * into an int rank: cells with equal keys get the same rank and a smaller
+ * rank sorts first. sort() then orders positions by rank with
+ * Arrays.parallelSort over packed longs, which sorts large ranges on all
+ * processors and needs no comparator.
+ *
+ * The order is the one described in Cell.compareTo():
+ *     empty
+ *     numbers (from smallest to largest, with errors last)
+ *     dates   (from earliest to latest, with invalid dates last)
+ *     text    (in alphabetical order)
+ */
+public class SortKeys {
+
+  // the kinds of cell, in the order they sort in
+  private static final int EMPTY = 0;
+  private static final int NUMBER = 1;
+  private static final int DATE = 2;
+  private static final int TEXT = 3;
+
+  /*
+   * Reads the key of every cell once and ranks it.
+   *
+   * Parameters:
+   *    cells : The cells to rank; null is an empty location.
+   * Returns:
+   *    The rank of each cell.
+   */
+  public static int[] rank(Cell[] cells) {
+    int[] kinds = new int[cells.length];
+    double[] numbers = new double[cells.length];
+    int[] counts = new int[4];
+    TextDictionary dictionary = textDictionary(cells);
+    int[] textRanks = dictionary == null ? null : dictionary.ranks();
+    for (int index = 0; index < cells.length; index++) {
+      Cell cell = cells[index];
+      int kind;
+      if (cell instanceof NumberCell) {
+        kind = NUMBER;
+        numbers[index] = cell.getValue();
+      } else if (cell instanceof DateCell) {
+        kind = DATE;
+        DateCell date = (DateCell) cell;
+        numbers[index] = date.isValid() ? date.getValue() : Double.POSITIVE_INFINITY;
+      } else if (cell instanceof TextCell) {
+        kind = TEXT;
+        numbers[index] = textRanks[textCode((TextCell) cell, dictionary)];
+      } else {
+        kind = EMPTY;
+      }
+      kinds[index] = kind;
+      counts[kind]++;
+    }
+
+    // the distinct keys of each kind, sorted
+    double[] numberKeys = distinct(keys(kinds, numbers, NUMBER, counts[NUMBER]));
+    double[] dateKeys = distinct(keys(kinds, numbers, DATE, counts[DATE]));
+    double[] textKeys = distinct(keys(kinds, numbers, TEXT, counts[TEXT]));
+
+    // the rank of the first key of each kind
+    int[] first = new int[4];
+    first[NUMBER] = 1;
+    first[DATE] = first[NUMBER] + numberKeys.length;
+    first[TEXT] = first[DATE] + dateKeys.length;
+
+    int[] ranks = new int[cells.length];
+    Arrays.parallelSetAll(ranks, index -> {
+      switch (kinds[index]) {
+        case NUMBER:
+          return first[NUMBER] + Arrays.binarySearch(numberKeys, numbers[index]);
+        case DATE:
+          return first[DATE] + Arrays.binarySearch(dateKeys, numbers[index]);
+        case TEXT:
+          return first[TEXT] + Arrays.binarySearch(textKeys, numbers[index]);
+        default:
+          return 0;
+      }
+    });
+    return ranks;
+  }
+
+  /*
+   * Sorts positions by rank. Positions with the same rank keep the order
+   * they have in order, so sorting by several keys is done one key at a
+   * time, from the last key to the first.
+   *
+   * Parameters:
+   *    ranks      : The rank of every position (see rank()).
+   *    descending : True to put the largest rank first.
+   *    order      : The positions in their current order.
+   * Returns:
+   *    The positions in sorted order.
+   */
+  public static int[] sort(int[] ranks, boolean descending, int[] order) {
+    // the rank goes in the upper half and the place in order in the lower
+    // half, so sorting the longs sorts by rank and keeps ties stable
+    long[] packed = new long[order.length];
+    for (int place = 0; place < order.length; place++) {
+      int rank = ranks[order[place]];
+      packed[place] = ((long) (descending ? -rank : rank) << 32) | place;
+    }
+    Arrays.parallelSort(packed);
+    int[] sorted = new int[order.length];
+    for (int place = 0; place < sorted.length; place++) {
+      sorted[place] = order[(int) packed[place]];
+    }
+    return sorted;
+  }
+
+  // returns the positions 0 to count - 1 in order
+  public static int[] identity(int count) {
+    int[] order = new int[count];
+    Arrays.setAll(order, index -> index);
+    return order;
+  }
+
+  // returns the keys of the cells of one kind
+  private static double[] keys(int[] kinds, double[] numbers, int kind, int count) {
+    double[] keys = new double[count];
+    int next = 0;
+    for (int index = 0; index < kinds.length; index++) {
+      if (kinds[index] == kind) {
+        keys[next++] = numbers[index];
+      }
+    }
+    return keys;
+  }
+
+  // returns the dictionary the text cells of the range keep their text in,
+  // or a new dictionary of their texts if they do not all share one (which
+  // only happens to cells that were built without the sheet's dictionary),
+  // or null if there are no text cells
+  private static TextDictionary textDictionary(Cell[] cells) {
+    TextDictionary shared = null;
+    for (Cell cell : cells) {
+      if (cell instanceof TextCell) {
+        TextDictionary dictionary = ((TextCell) cell).getDictionary();
+        if (dictionary == null || (shared != null && shared != dictionary)) {
+          TextDictionary merged = new TextDictionary();
+          for (Cell text : cells) {
+            if (text instanceof TextCell) {
+              merged.intern(text.getExpression());
+            }
+          }
+          return merged;
+        }
+        shared = dictionary;
+      }
+    }
+    return shared;
+  }
+
+  // returns the code of the cell's text in dictionary
+  private static int textCode(TextCell cell, TextDictionary dictionary) {
+    if (cell.getDictionary() == dictionary) {
+      return cell.getCode();
+    }
+    return dictionary.intern(cell.getExpression());
+  }
+
+  // sorts keys and drops the repeated ones, so that binarySearch finds
+  // the same place for equal keys. NaNs (errors) are all sorted last and
+  // compare equal to each other. Text keys are the alphabetical ranks of
+  // the texts in the sheet's TextDictionary, so text is sorted as ints.
+  private static double[] distinct(double[] keys) {
+    Arrays.parallelSort(keys);
+    int count = 0;
+    for (int index = 0; index < keys.length; index++) {
+      if (count == 0 || Double.compare(keys[count - 1], keys[index]) != 0) {
+        keys[count++] = keys[index];
+      }
+    }
+    return Arrays.copyOf(keys, count);
+  }
+}
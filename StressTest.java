@@ -0,0 +1,208 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * The StressTest runs writers and readers against one Grid at the same time
+ * and checks that the grid stays consistent:
+ *
+ *     writers : each one owns one row and counts its a cell up from 1,
+ *               with formulas next to it that read it,
+ *                   b = ( a ^ 2 )    c = ( b - a ^ 2 )    d = ( b + a )
+ *                   f = ( d - b )
+ *               and also writes its own rows of column g, which it shares
+ *               tile by tile (and bitmap word by bitmap word) with the
+ *               other writers
+ *     readers : read the cells of random writers without taking any lock
+ *
+ * A torn read shows up as a c that is not 0 (b was worked out from one value
+ * of a and c read another), or as a d that is not n * n + n for a whole n,
+ * or as an f that is not a count the writer could have written, or as an
+ * a, d or f that goes back to an older value. f reads a only through
+ * other formulas, so it checks that a write reaches formulas two steps
+ * away even when the walk stops at formulas that are dirty already. A lost update shows up
+ * at the end, once the writers are done, as a cell that does not hold the
+ * last value written to it, or a formula that was not brought up to date.
+ * Run it with
+ *     java StressTest [writers] [readers] [writes per writer]
+ * It prints what it checked and exits with 1 if anything was wrong.
+ */
+public class StressTest {
+
+  // the rows of column g the writers share
+  private static final int SHARED_ROWS = 2048;
+
+  private static final AtomicInteger failures = new AtomicInteger();
+  private static final AtomicLong reads = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int writes = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+    Grid grid = new Grid();
+    grid.processCommand("rows = " + SHARED_ROWS);
+    for (int writer = 1; writer <= writers; writer++) {
+      grid.processCommand("a" + writer + " = 0");
+      grid.processCommand("b" + writer + " = ( a" + writer + " ^ 2 )");
+      grid.processCommand("c" + writer + " = ( b" + writer + " - a" + writer + " ^ 2 )");
+      grid.processCommand("d" + writer + " = ( b" + writer + " + a" + writer + " )");
+      grid.processCommand("f" + writer + " = ( d" + writer + " - b" + writer + " )");
+    }
+    grid.processCommand("e1 = ( sum a1 - a" + writers + " )");
+
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger running = new AtomicInteger(writers);
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int writer = 1; writer <= writers; writer++) {
+      int owner = writer;
+      threads.add(thread(start, () -> {
+        try {
+          write(grid, owner, writers, writes);
+        } finally {
+          running.decrementAndGet();
+        }
+      }));
+    }
+    for (int reader = 0; reader < readers; reader++) {
+      long seed = reader;
+      threads.add(thread(start, () -> read(grid, writers, writes, seed, running)));
+    }
+
+    long began = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long millis = (System.nanoTime() - began) / 1000000;
+
+    grid.recalculate();
+    check(grid, writers, writes);
+    System.out.println(writers + " writers x " + writes + " writes, " + readers + " readers, "
+        + reads.get() + " reads in " + millis + " ms");
+    if (failures.get() > 0) {
+      System.out.println(failures.get() + " problems found");
+      System.exit(1);
+    }
+    System.out.println("no lost updates, no torn reads");
+  }
+
+  // starts a thread that waits for start before it runs work, and counts
+  // anything it throws as a problem
+  private static Thread thread(CountDownLatch start, Runnable work) {
+    Thread thread = new Thread(() -> {
+      try {
+        start.await();
+        work.run();
+      } catch (Throwable e) {
+        fail("thread died: " + e);
+        e.printStackTrace();
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  // counts the writer's a cell up from 1 to writes, and writes the count
+  // into the writer's rows of column g as well
+  private static void write(Grid grid, int owner, int writers, int writes) {
+    for (int count = 1; count <= writes; count++) {
+      grid.processCommand("a" + owner + " = " + count);
+      int row = owner + writers * (count % (SHARED_ROWS / writers)) - 1;
+      if (row < SHARED_ROWS) {
+        grid.processCommand("g" + (row + 1) + " = " + count);
+      }
+    }
+  }
+
+  // reads the cells of random writers until every writer is done, checking
+  // that every formula agrees with the value of a it was worked out from
+  // and that no value goes back in time
+  private static void read(Grid grid, int writers, int writes, long seed, AtomicInteger running) {
+    Random random = new Random(seed);
+    double[] lastA = new double[writers + 1];
+    double[] lastD = new double[writers + 1];
+    double[] lastF = new double[writers + 1];
+    while (running.get() > 0) {
+      int owner = 1 + random.nextInt(writers);
+      double a = value(grid, "a" + owner);
+      double c = value(grid, "c" + owner);
+      double d = value(grid, "d" + owner);
+      double f = value(grid, "f" + owner);
+      if (c != 0) {
+        fail("c" + owner + " is " + c + ", so b" + owner + " and a" + owner + " were read apart");
+      }
+      double n = Math.floor(Math.sqrt(d));
+      if (n * n + n != d) {
+        fail("d" + owner + " is " + d + ", which is not n * n + n");
+      }
+      if (f < 0 || f > writes || f != Math.floor(f)) {
+        fail("f" + owner + " is " + f + ", which is not a count");
+      }
+      if (a < lastA[owner] || d < lastD[owner] || f < lastF[owner]) {
+        fail("a" + owner + ", d" + owner + " or f" + owner + " went back from " + lastA[owner] + ", "
+            + lastD[owner] + ", " + lastF[owner] + " to " + a + ", " + d + ", " + f);
+      }
+      lastA[owner] = a;
+      lastD[owner] = d;
+      lastF[owner] = f;
+      grid.processCommand("print a1 - g" + writers);
+      reads.addAndGet(5);
+    }
+  }
+
+  // checks the final state once every writer is done
+  private static void check(Grid grid, int writers, int writes) {
+    double total = 0;
+    for (int owner = 1; owner <= writers; owner++) {
+      double n = writes;
+      expect(grid, "a" + owner, n);
+      expect(grid, "b" + owner, n * n);
+      expect(grid, "c" + owner, 0);
+      expect(grid, "d" + owner, n * n + n);
+      expect(grid, "f" + owner, n);
+      total += n;
+    }
+    expect(grid, "e1", total);
+
+    // the last count each writer wrote to each of its rows of column g
+    double[] last = new double[SHARED_ROWS];
+    for (int owner = 1; owner <= writers; owner++) {
+      for (int count = 1; count <= writes; count++) {
+        int row = owner + writers * (count % (SHARED_ROWS / writers)) - 1;
+        if (row < SHARED_ROWS) {
+          last[row] = count;
+        }
+      }
+    }
+    int written = 0;
+    for (int row = 0; row < SHARED_ROWS; row++) {
+      if (last[row] != 0) {
+        expect(grid, "g" + (row + 1), last[row]);
+        written++;
+      }
+    }
+    int cells = Integer.parseInt(grid.processCommand("count g1 - g" + SHARED_ROWS));
+    if (cells != written) {
+      fail("column g holds " + cells + " numbers instead of " + written);
+    }
+  }
+
+  private static void expect(Grid grid, String cell, double expected) {
+    double value = value(grid, cell);
+    if (value != expected) {
+      fail(cell + " is " + value + " instead of " + expected);
+    }
+  }
+
+  private static double value(Grid grid, String cell) {
+    return Double.parseDouble(grid.processCommand("value " + cell));
+  }
+
+  // reports a problem; only the first few are printed
+  private static void fail(String problem) {
+    if (failures.incrementAndGet() <= 10) {
+      System.out.println(problem);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/*
+ * The StripedLock keeps writers of the Grid from getting in each other's way.
+ * One lock for the whole grid would make every writer wait for every other
+ * one, and a lock for every cell would cost more memory than the cells. So
+ * the grid is split into regions, the same 64 x 16 tiles the CellStore keeps
+ * its cells in, and every region is guarded by one of a fixed number of
+ * locks (stripes). Writers to different regions usually hold different
+ * stripes and run side by side; two writers to the same tile always share a
+ * stripe, so the tile's counters and bitmap only ever have one writer.
+ *
+ * Readers do not take these locks at all (see CellStore).
+ *
+ * A writer that needs more than one stripe (a sort, or clearing the grid)
+ * takes them in ascending order, and a writer holding one stripe never
+ * waits for another, so two writers can never wait for each other. The
+ * locks are reentrant, so a sort may set cells one at a time while it
+ * holds the stripes of its range.
+ */
+public class StripedLock {
+
+  private final ReentrantLock[] stripes;
+  private final int mask;
+
+  // creates the locks; count is rounded up to a power of two
+  public StripedLock(int count) {
+    int size = Integer.highestOneBit(Math.max(count - 1, 1)) << 1;
+    stripes = new ReentrantLock[size];
+    for (int index = 0; index < size; index++) {
+      stripes[index] = new ReentrantLock();
+    }
+    mask = size - 1;
+  }
+
+  // returns the stripe that guards the region holding row, col
+  private int stripe(int row, int col) {
+    int hash = (row >> CellStore.ROW_BITS) * 0x9e3779b9 + (col >> CellStore.COL_BITS);
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  // locks the region that holds row, col
+  public void lock(int row, int col) {
+    stripes[stripe(row, col)].lock();
+  }
+
+  public void unlock(int row, int col) {
+    stripes[stripe(row, col)].unlock();
+  }
+
+  /*
+   * Locks every region that overlaps the range from startRow, startCol to
+   * endRow, endCol (inclusive). A range that covers more regions than there
+   * are stripes simply takes them all.
+   *
+   * Returns:
+   *    The stripes that were locked, to be passed to unlock().
+   */
+  public int[] lock(int startRow, int startCol, int endRow, int endCol) {
+    long regions = (long) ((Math.max(endRow, startRow) >> CellStore.ROW_BITS) - (startRow >> CellStore.ROW_BITS) + 1)
+        * ((Math.max(endCol, startCol) >> CellStore.COL_BITS) - (startCol >> CellStore.COL_BITS) + 1);
+    if (regions >= stripes.length) {
+      return lockAll();
+    }
+    boolean[] needed = new boolean[stripes.length];
+    for (int row = startRow; row <= endRow; row = (row | (CellStore.TILE_ROWS - 1)) + 1) {
+      for (int col = startCol; col <= endCol; col = (col | (CellStore.TILE_COLS - 1)) + 1) {
+        needed[stripe(row, col)] = true;
+      }
+    }
+    int[] held = new int[stripes.length];
+    int count = 0;
+    for (int index = 0; index < stripes.length; index++) {
+      if (needed[index]) {
+        held[count++] = index;
+      }
+    }
+    return lock(Arrays.copyOf(held, count));
+  }
+
+  // locks every region of the grid
+  public int[] lockAll() {
+    int[] held = new int[stripes.length];
+    Arrays.setAll(held, index -> index);
+    return lock(held);
+  }
+
+  // locks the stripes, which must be in ascending order
+  private int[] lock(int[] held) {
+    for (int index : held) {
+      stripes[index].lock();
+    }
+    return held;
+  }
+
+  // unlocks the stripes returned by lock() or lockAll()
+  public void unlock(int[] held) {
+    for (int index = held.length - 1; index >= 0; index--) {
+      stripes[held[index]].unlock();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * The SubexpressionCache remembers the results of the expensive parts of
+ * formulas (log, sqrt and ^) during one recalculation pass, so that the
+ * same subexpression is only calculated once, whether it is repeated inside
+ * one formula, like ( sqrt a1 + 1 ) / sqrt a1, or shared by neighbouring
+ * formulas, like sqrt a1 in both b1 and c1.
+ *
+ * A subexpression is identified by its shape relative to the first cell it
+ * reads (see Formula.Memoized) together with the location of that cell, so
+ * sqrt a1 has the same key in every formula that contains it. The shapes
+ * are numbered once, when a formula is compiled, and the key packs that
+ * number with the row and column into a long.
+ *
+ * Results are only kept while the RecalcEngine runs a pass. Inside a pass
+ * a formula is only evaluated after every cell it reads is up to date, so a
+ * result stays valid until the pass ends; outside a pass nothing is cached.
+ * Each thread keeps its own table, so the parallel levels of a pass never
+ * wait on each other.
+ *
+ * Several writers may recalculate at the same time, so passes may overlap:
+ * caching stays on until the last of them ends. A writer that changes a
+ * cell calls cellsChanged() before the formulas that read it are marked
+ * dirty, which empties every table the next time it is used, so a result
+ * worked out from the cell before it changed is never used after.
+ */
+public class SubexpressionCache {
+
+  // the number of the pass that is running, or 0 between passes, and how
+  // many passes are running
+  private static volatile long pass = 0;
+  private static long lastPass = 0;
+  private static int running = 0;
+
+  // counts the changes made to cells; a table is emptied when it was
+  // filled before the latest one
+  private static final AtomicLong changes = new AtomicLong();
+
+  // the number of each subexpression shape
+  private static final ConcurrentHashMap<String, Integer> shapes = new ConcurrentHashMap<String, Integer>();
+  private static final AtomicInteger shapeCount = new AtomicInteger();
+
+  // the table of each thread
+  private static final ThreadLocal<SubexpressionCache> tables = ThreadLocal.withInitial(SubexpressionCache::new);
+
+  // the largest table a thread keeps; it is emptied when it gets this full
+  private static final int MAX_CAPACITY = 1 << 20;
+
+  // an open addressing table of keys and results; a key of 0 marks an
+  // empty slot, which is never a real key since shape numbers start at 1
+  private long[] keys = new long[256];
+  private double[] values = new double[256];
+  private int size = 0;
+  private long tablePass = 0;
+  private long tableChanges = 0;
+
+  // starts a pass; results cached by an earlier pass are forgotten, unless
+  // another pass is still running, in which case the two share results
+  public static synchronized void beginPass() {
+    if (running++ == 0) {
+      pass = ++lastPass;
+    }
+  }
+
+  // ends the pass; nothing is cached once no pass is running
+  public static synchronized void endPass() {
+    if (--running == 0) {
+      pass = 0;
+    }
+  }
+
+  // called by a writer after it has changed a cell, and before it marks
+  // the formulas that read the cell dirty
+  public static void cellsChanged() {
+    changes.incrementAndGet();
+  }
+
+  /*
+   * Returns the number of a subexpression shape, numbering it the first time
+   * it is seen.
+   */
+  static int shapeNumber(String shape) {
+    Integer number = shapes.get(shape);
+    if (number == null) {
+      Integer added = shapeCount.incrementAndGet();
+      number = shapes.putIfAbsent(shape, added);
+      if (number == null) {
+        number = added;
+      }
+    }
+    return number;
+  }
+
+  /*
+   * Packs a shape number and the location of the first cell the
+   * subexpression reads into a key.
+   *
+   * Returns:
+   *    The key, or 0 if the location is outside the largest sheet.
+   */
+  static long key(int shape, int row, int col) {
+    if (row < 0 || col < 0 || row >= CellAddress.MAX_ROWS || col >= CellAddress.MAX_COLS
+        || shape >= 1 << 30) {
+      return 0;
+    }
+    return ((long) shape << 34) | ((long) row << 14) | col;
+  }
+
+  // returns the table of this thread, or null when no pass is running
+  static SubexpressionCache current() {
+    long current = pass;
+    if (current == 0) {
+      return null;
+    }
+    long changed = changes.get();
+    SubexpressionCache table = tables.get();
+    if (table.tablePass != current || table.tableChanges != changed) {
+      table.clear();
+      table.tablePass = current;
+      table.tableChanges = changed;
+    }
+    return table;
+  }
+
+  // returns the count of changes the table was filled after
+  long getChanges() {
+    return tableChanges;
+  }
+
+  // returns true if no cell has changed since the table was filled after
+  // changes, so a result worked out since then may be kept
+  boolean isCurrent(long changes) {
+    return tableChanges == changes && SubexpressionCache.changes.get() == changes;
+  }
+
+  // returns the slot of key, or of the empty slot where it would go
+  int find(long key) {
+    int mask = keys.length - 1;
+    int slot = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  // returns true if the slot holds a result
+  boolean found(int slot) {
+    return keys[slot] != 0;
+  }
+
+  double value(int slot) {
+    return values[slot];
+  }
+
+  // stores a result in the empty slot returned by find()
+  void put(int slot, long key, double value) {
+    keys[slot] = key;
+    values[slot] = value;
+    size++;
+    if (size * 2 > keys.length) {
+      grow();
+    }
+  }
+
+  // doubles the table, or empties it once it is as big as it may get
+  private void grow() {
+    if (keys.length >= MAX_CAPACITY) {
+      clear();
+      return;
+    }
+    long[] oldKeys = keys;
+    double[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new double[oldKeys.length * 2];
+    for (int index = 0; index < oldKeys.length; index++) {
+      if (oldKeys[index] != 0) {
+        int slot = find(oldKeys[index]);
+        keys[slot] = oldKeys[index];
+        values[slot] = oldValues[index];
+      }
+    }
+  }
+
+  private void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, 0);
+      size = 0;
+    }
+  }
+}
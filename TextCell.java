@@ -1,19 +1,44 @@
+/*
+ *  A TextCell holds a label, like a1 = "east". The text itself lives in the
+ *  sheet's TextDictionary and the cell only keeps its int code, so a label
+ *  repeated across many cells is stored once, and showing the cell returns
+ *  the text the dictionary already holds without cutting the quotes off
+ *  again. The value of this cell is zero.
+ */
 public class TextCell extends Cell {
 
-    // method that merely gets the expression method from the Cell class
+    // the dictionary the text is in, and its code there
+    private TextDictionary dictionary;
+    private int code;
+
+    // looks the expression (with its quotes) up in the dictionary of the
+    // sheet, adding it if it is new
+    public boolean setExpression(String expression) {
+      dictionary = GridBase.grid != null ? GridBase.grid.getTextDictionary() : new TextDictionary();
+      code = dictionary.intern(expression);
+      return true;
+    }
+
+    // returns the expression with its quotes, as it was typed
     public String getExpression() {
-      return super.getExpression();
+      return dictionary == null ? "" : dictionary.expression(code);
+    }
+
+    // returns the code of the text in its dictionary
+    public int getCode() {
+      return code;
+    }
+
+    public TextDictionary getDictionary() {
+      return dictionary;
     }
   
     /*
     *  This will return the string for how a TextCell wants to display
-    *  itself. All it does is remove the bounding quotes from
-    *  the expression.
+    *  itself: the expression without the bounding quotes, which the
+    *  dictionary keeps ready.
     */
     public String toString() {
-        // gets the expression and removes the quotes
-        String command = getExpression();
-        command = command.substring(1, command.length() - 1);
-        return command;
+        return dictionary == null ? "" : dictionary.text(code);
     }
 }
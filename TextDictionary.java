@@ -0,0 +1,106 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * The TextDictionary holds every distinct text of a sheet once. A sheet
+ * tends to repeat the same few hundred labels (region names, product codes)
+ * across a great many cells, so instead of keeping its own copy of the text
+ * every TextCell keeps the int code of its text in the dictionary. The
+ * dictionary keeps both the expression, with its quotes ("east"), and the
+ * text that is shown (east), so neither has to be cut out again.
+ *
+ * Two cells hold the same text exactly when they hold the same code, and
+ * ranks() gives every code its place in alphabetical order, so text can be
+ * compared and sorted by ints.
+ *
+ * Cells are built on several threads at once during a bulk load, so
+ * intern() may be called from any thread. Reading the text of a code takes
+ * no lock: the arrays are only replaced, never changed in place, after the
+ * code has been handed out.
+ */
+public class TextDictionary {
+
+  // expression -> code
+  private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+  // code -> expression, and code -> shown text; only the first size
+  // entries are used
+  private volatile String[] expressions = new String[16];
+  private volatile String[] texts = new String[16];
+  private int size = 0;
+
+  // code -> its place in alphabetical order, built by ranks() and dropped
+  // when a new text is added
+  private volatile int[] ranks = null;
+
+  /*
+   * Returns the code of a text expression (with its quotes), adding it the
+   * first time it is seen.
+   */
+  public int intern(String expression) {
+    Integer code = codes.get(expression);
+    if (code != null) {
+      return code;
+    }
+    synchronized (this) {
+      code = codes.get(expression);
+      if (code != null) {
+        return code;
+      }
+      if (size == expressions.length) {
+        texts = Arrays.copyOf(texts, size * 2);
+        expressions = Arrays.copyOf(expressions, size * 2);
+      }
+      // the arrays are written before the code is published in the map
+      texts[size] = unquote(expression);
+      expressions[size] = expression;
+      ranks = null;
+      codes.put(expression, size);
+      return size++;
+    }
+  }
+
+  // returns the expression of a code, with its quotes
+  public String expression(int code) {
+    return expressions[code];
+  }
+
+  // returns the text of a code, as it is shown
+  public String text(int code) {
+    return texts[code];
+  }
+
+  // returns the number of distinct texts
+  public synchronized int size() {
+    return size;
+  }
+
+  /*
+   * Returns, for every code, the place of its text in alphabetical order.
+   * The ranks are worked out once and kept until a new text is added.
+   */
+  public synchronized int[] ranks() {
+    if (ranks == null) {
+      Integer[] order = new Integer[size];
+      for (int code = 0; code < size; code++) {
+        order[code] = code;
+      }
+      String[] sorted = texts;
+      Arrays.sort(order, (first, second) -> sorted[first].compareTo(sorted[second]));
+      int[] built = new int[size];
+      for (int place = 0; place < size; place++) {
+        built[order[place]] = place;
+      }
+      ranks = built;
+    }
+    return ranks;
+  }
+
+  // removes the quotes around a text expression
+  private static String unquote(String expression) {
+    if (expression.length() < 2) {
+      return "";
+    }
+    return expression.substring(1, expression.length() - 1);
+  }
+}
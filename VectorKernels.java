@@ -0,0 +1,71 @@
+import jdk.incubator.vector.*;
+
+/*
+ * The VectorKernels run the range kernels on the Java Vector API, using the
+ * widest vector of doubles the processor supports. Each loop works through
+ * the buffer one vector at a time and finishes the last few values with the
+ * scalar loop.
+ *
+ * Adding several lanes at once changes the order in which the values are
+ * added, so a sum may differ from the scalar sum in its last bits.
+ *
+ * This class needs the incubator module: compile and run with
+ * --add-modules jdk.incubator.vector. Nothing refers to it directly; see
+ * RangeKernels.vector().
+ */
+public class VectorKernels extends RangeKernels {
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  public String getName() {
+    return "vector (" + SPECIES.length() + " lanes)";
+  }
+
+  public double sum(double[] values, int count) {
+    int upper = SPECIES.loopBound(count);
+    DoubleVector sums = DoubleVector.zero(SPECIES);
+    int index = 0;
+    for (; index < upper; index += SPECIES.length()) {
+      sums = sums.add(DoubleVector.fromArray(SPECIES, values, index));
+    }
+    double sum = sums.reduceLanes(VectorOperators.ADD);
+    for (; index < count; index++) {
+      sum += values[index];
+    }
+    return sum;
+  }
+
+  public double min(double[] values, int count) {
+    if (count < SPECIES.length()) {
+      return super.min(values, count);
+    }
+    int upper = SPECIES.loopBound(count);
+    DoubleVector mins = DoubleVector.fromArray(SPECIES, values, 0);
+    int index = SPECIES.length();
+    for (; index < upper; index += SPECIES.length()) {
+      mins = mins.min(DoubleVector.fromArray(SPECIES, values, index));
+    }
+    double min = mins.reduceLanes(VectorOperators.MIN);
+    for (; index < count; index++) {
+      min = Math.min(min, values[index]);
+    }
+    return min;
+  }
+
+  public double max(double[] values, int count) {
+    if (count < SPECIES.length()) {
+      return super.max(values, count);
+    }
+    int upper = SPECIES.loopBound(count);
+    DoubleVector maxes = DoubleVector.fromArray(SPECIES, values, 0);
+    int index = SPECIES.length();
+    for (; index < upper; index += SPECIES.length()) {
+      maxes = maxes.max(DoubleVector.fromArray(SPECIES, values, index));
+    }
+    double max = maxes.reduceLanes(VectorOperators.MAX);
+    for (; index < count; index++) {
+      max = Math.max(max, values[index]);
+    }
+    return max;
+  }
+}